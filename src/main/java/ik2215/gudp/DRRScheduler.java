@@ -0,0 +1,63 @@
+package ik2215.gudp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * DRRScheduler implements Deficit Round Robin over the end points in
+ * senderList. Every round, an end point with packets waiting earns
+ * quantum * weight bytes of credit, and sends only while it has credit
+ * left. Idle end points do not save up credit, and end points held back by
+ * their window save up at most one round of it. The end point visited first
+ * moves along senderList every round, so list position gives no lasting
+ * advantage. SenderThread starts the next round as soon as credit runs out,
+ * so a lone end point sends as fast as under FIFOScheduler.
+ */
+public class DRRScheduler implements TransmitScheduler {
+    /* By default, weight 1 earns about one maximum size packet per round */
+    public static final int DEFAULT_QUANTUM = GUDPPacket.MAX_PACKET_LEN;
+
+    private final int quantum;
+    private int first = 0; // index in senderList of the end point visited first
+
+    public DRRScheduler() {
+        this(DEFAULT_QUANTUM);
+    }
+
+    public DRRScheduler(int quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("Quantum must be at least 1 byte");
+        }
+        this.quantum = quantum;
+    }
+
+    public List<GUDPEndPoint> beginRound(LinkedList<GUDPEndPoint> senderList) {
+        ArrayList<GUDPEndPoint> order = new ArrayList<>(senderList.size());
+        if (!senderList.isEmpty()) {
+            first = (first + 1) % senderList.size();
+            order.addAll(senderList.subList(first, senderList.size()));
+            order.addAll(senderList.subList(0, first));
+        }
+        for (GUDPEndPoint endPoint : senderList) {
+            if (endPoint.hasUnsent()) {
+                long credit = (long) quantum * endPoint.getWeight();
+                // credit an end point cannot use, e.g. with a full window, is not saved up
+                // beyond one round, but a packet larger than one round's credit still goes out
+                long cap = Math.max(credit, endPoint.getMaxSegment() + GUDPPacket.MAX_OVERHEAD);
+                endPoint.setDeficit(Math.min(endPoint.getDeficit() + credit, cap));
+            } else {
+                endPoint.setDeficit(0);
+            }
+        }
+        return order;
+    }
+
+    public boolean mayTransmit(GUDPEndPoint endPoint, int length) {
+        return endPoint.getDeficit() >= length;
+    }
+
+    public void transmitted(GUDPEndPoint endPoint, int length) {
+        endPoint.setDeficit(endPoint.getDeficit() - length);
+    }
+}
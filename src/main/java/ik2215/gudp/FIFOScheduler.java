@@ -0,0 +1,22 @@
+package ik2215.gudp;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * FIFOScheduler lets every end point fill its whole window, in senderList
+ * order. This is the default, plain GBN behaviour.
+ */
+public class FIFOScheduler implements TransmitScheduler {
+
+    public List<GUDPEndPoint> beginRound(LinkedList<GUDPEndPoint> senderList) {
+        return senderList;
+    }
+
+    public boolean mayTransmit(GUDPEndPoint endPoint, int length) {
+        return true;
+    }
+
+    public void transmitted(GUDPEndPoint endPoint, int length) {
+    }
+}
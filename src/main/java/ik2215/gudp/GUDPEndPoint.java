@@ -1,7 +1,15 @@
 package ik2215.gudp;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -12,27 +20,115 @@ class GUDPEndPoint {
     public static final int MAX_WINDOW_SIZE = 3;
     public static final long TIMEOUT_DURATION = 3000L; // 3 seconds
     public static final int MAX_RETRY = 7;
+    public static final int DUP_ACK_THRESHOLD = 2; // duplicate ACKs before base is resent, the default window leaves room for two
+    public static final int MAX_QUEUE_PACKETS = 0; // 0 means unbounded
+    public static final long MAX_QUEUE_BYTES = 0L; // 0 means unbounded
+    public static final int MAX_ENDPOINTS = 1024; // per senderList and per receiverList
+    public static final long IDLE_TIMEOUT = 60000L; // 60 seconds
+    public static final int MAX_HOLD_PACKETS = 64; // out-of-order packets held by a receiver
+    public static final long PACE_OFF = 0L; // pacing rate: send the window back-to-back
+    public static final long PACE_RTT = -1L; // pacing rate: spread one window over one RTT
+    public static final double PACE_GAIN = 1.25; // PACE_RTT sends slightly faster than window/RTT
+    public static final int FEC_OFF = 0; // FEC block size: no parity packets
+    public static final int MAX_FEC_BLOCK = 16; // DATA packets per parity packet, at most
+    public static final long MAX_MESSAGE_LEN = 1L << 20; // bytes of a fragmented message a receiver accepts
+    public static final long MAX_FRAGMENT_BYTES = 4L << 20; // bytes of incomplete messages a receiver holds, all streams
+    public static final int PROBE_TRIES = 2; // unanswered probes before a size counts as too big
+    public static final int PROBE_STEP = 64; // stop searching when the bounds are this close
+    public static final int MAX_PROBE_LEN = 1472; // largest UDP payload in a 1500-byte Ethernet frame
 
     /* Variables for the control block */
     private InetSocketAddress remoteEndPoint;
     // private LinkedList<GUDPPacket> bufferList = new LinkedList<>(); //list of
     // GUDPPacket
     private ConcurrentLinkedQueue<GUDPPacket> bufferQueue = new ConcurrentLinkedQueue<>();
+    /*
+     * Sender: packets waiting to enter the window, one FIFO per GUDPSocket.priority
+     * class plus a last one for the FIN. They get their seqno when drawn.
+     */
+    private ArrayList<ArrayDeque<GUDPPacket>> pendingQueues = new ArrayList<>();
+    private int pendingCount = 0;
+    private ArrayDeque<GUDPPacket> requeue = new ArrayDeque<>(); // taken back out of the window, drawn first
+    private int drawClass = -1; // class whose fragmented message is being drawn, -1 if none
 
     private int windowSize;
     private long timeoutDuration;
     private int maxRetry;
     private int retry = 0;
+    private int dupAcks = 0; // duplicate ACKs for base since it last moved
+
+    /* Send queue limits, counting both unacknowledged and unsent packets */
+    private int maxQueuePackets;
+    private long maxQueueBytes;
+    private long queuedBytes = 0; // header + payload bytes held in bufferQueue and pendingQueues
 
     /* GBN sender */
     private int base; // seq of sent packet not yet acked (i.e., base)
     private int nextseqnum; // seq of next packet to send (i.e., nextseqnum)
-    private int last; // seq of last packet in bufferQueue
+    private int last; // seq of last packet in bufferQueue (last seq assigned)
+    private int lastForward; // seqno of the last FWD sent, so it is not repeated every round
 
     /* GBN receiver */
     private int expectedseqnum; // seq of next packet to receive
+    /* packets that arrived ahead of expectedseqnum, by sequence number */
+    private HashMap<Integer, GUDPPacket> holdMap = new HashMap<>();
+    private int maxHold = MAX_HOLD_PACKETS;
+    private long heldBytes = 0;
+    /* Receiver: order and reassembly per stream, stream 0 follows the GBN order only */
+    private static class StreamState {
+        int expected = 0; // next seqno within the stream
+        /* in-order fragments of a message whose last fragment has not arrived yet */
+        ArrayList<GUDPPacket> fragments = new ArrayList<>();
+        long fragmentBytes = 0;
+        long started = 0; // order in which the incomplete messages began
+    }
+
+    private HashMap<Integer, StreamState> streams = new HashMap<>();
+    private long fragmentBytes = 0; // in all streams
+    private long maxFragmentBytes = MAX_FRAGMENT_BYTES;
+    private long messagesStarted = 0;
+    /* Sender: next seqno within each stream */
+    private HashMap<Integer, Integer> streamNext = new HashMap<>();
+    private long maxMessage = MAX_MESSAGE_LEN;
 
     private boolean finished = false; // indicate communication finished
+    private boolean persistent = false; // keep the session after finished (receiver: the peer does)
+    private long lastActive = System.currentTimeMillis(); // for idle and LRU eviction
+    private boolean ready = false; // in the readyList of the socket
+
+    /* Transmit scheduling */
+    private int weight = 1; // share of transmit opportunities relative to other end points
+    private long deficit = 0; // DRR credit in bytes
+
+    /* RTT estimate (RFC 6298 smoothing), in nanoseconds, 0 until the first sample */
+    private long srtt = 0L;
+    private long rttvar = 0L;
+
+    /* Token bucket pacing */
+    private long paceRate = PACE_OFF; // bytes per second, or PACE_OFF / PACE_RTT
+    private double tokens = 0; // bytes that may be sent right now
+    private long lastRefill = System.nanoTime();
+
+    /* Packetization layer path MTU discovery, sizes are whole datagrams */
+    private boolean pmtud = false;
+    private int maxSegment = GUDPPacket.MAX_DATA_LEN; // DATA payload bytes per packet
+    private int probeLow = GUDPPacket.MAX_DATAGRAM_LEN; // largest size known to get through
+    private int probeHigh = MAX_PROBE_LEN + 1; // smallest size known not to
+    private int probeSize = 0; // probe in flight, 0 if none
+    private long probeSent = 0L;
+    private int probeTries = 0;
+
+    /* FEC sender: XOR of the datagrams in the current block of first transmissions */
+    private int fecBlock = FEC_OFF;
+    private int fecFirst; // seqno of the first DATA in the block
+    private int fecCount = 0;
+    private int fecLength = 0; // longest datagram in the block
+    private int fecLengthXor = 0;
+    private byte[] fecXor = new byte[0];
+
+    /* FEC receiver: recently received DATA by seqno, to rebuild a lost one from parity */
+    private HashMap<Integer, GUDPPacket> fecCache = new HashMap<>();
+    private boolean fecSeen = false; // the peer sends parity, so caching is worth it
 
     /* for testing drop packets */
     private boolean dropSend = false; // for drop send packet
@@ -56,6 +152,12 @@ class GUDPEndPoint {
         this.windowSize = MAX_WINDOW_SIZE;
         this.maxRetry = MAX_RETRY;
         this.timeoutDuration = TIMEOUT_DURATION;
+        this.maxQueuePackets = MAX_QUEUE_PACKETS;
+        this.maxQueueBytes = MAX_QUEUE_BYTES;
+        // one queue per priority class, then one for the FIN
+        for (int i = 0; i <= GUDPSocket.priority.values().length; i++) {
+            pendingQueues.add(new ArrayDeque<GUDPPacket>());
+        }
     }
 
     public InetSocketAddress getRemoteEndPoint() {
@@ -98,14 +200,46 @@ class GUDPEndPoint {
         this.retry = retry;
     }
 
+    public int getMaxQueuePackets() {
+        return this.maxQueuePackets;
+    }
+
+    public void setMaxQueuePackets(int packets) {
+        this.maxQueuePackets = packets;
+    }
+
+    public long getMaxQueueBytes() {
+        return this.maxQueueBytes;
+    }
+
+    public void setMaxQueueBytes(long bytes) {
+        this.maxQueueBytes = bytes;
+    }
+
+    public long getQueuedBytes() {
+        return this.queuedBytes;
+    }
+
     public int getBase() {
         return this.base;
     }
 
     public void setBase(int ack) {
+        if (ack != this.base) {
+            dupAcks = 0;
+        }
         this.base = ack;
     }
 
+    /*
+     * Count an ACK for base while packets are in flight. The receiver sends
+     * one for every packet it holds past a gap. Return true once, when there
+     * are enough of them to resend base without waiting for the timeout.
+     */
+    public boolean duplicateAck() {
+        return ++dupAcks == DUP_ACK_THRESHOLD;
+    }
+
     public int getNextseqnum() {
         return this.nextseqnum;
     }
@@ -122,6 +256,14 @@ class GUDPEndPoint {
         this.last = last;
     }
 
+    public int getLastForward() {
+        return this.lastForward;
+    }
+
+    public void setLastForward(int seq) {
+        this.lastForward = seq;
+    }
+
     public int getExpectedseqnum() {
         return this.expectedseqnum;
     }
@@ -138,6 +280,396 @@ class GUDPEndPoint {
         this.finished = value;
     }
 
+    public boolean getPersistent() {
+        return this.persistent;
+    }
+
+    public void setPersistent(boolean value) {
+        this.persistent = value;
+    }
+
+    public int getWeight() {
+        return this.weight;
+    }
+
+    public void setWeight(int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be at least 1");
+        this.weight = weight;
+    }
+
+    public long getDeficit() {
+        return this.deficit;
+    }
+
+    public void setDeficit(long deficit) {
+        this.deficit = deficit;
+    }
+
+    public long getSrtt() {
+        return this.srtt;
+    }
+
+    /*
+     * Feed one RTT measurement (nanoseconds) into the smoothed estimate
+     */
+    public void sampleRtt(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    public long getPaceRate() {
+        return this.paceRate;
+    }
+
+    public void setPaceRate(long rate) {
+        this.paceRate = rate;
+    }
+
+    /*
+     * Current pacing rate in bytes per second, 0 if not pacing
+     */
+    private double currentRate() {
+        if (paceRate > 0)
+            return paceRate;
+        if (paceRate == PACE_RTT && srtt > 0)
+            return PACE_GAIN * windowSize * packetSize() * 1e9 / srtt;
+        return 0;
+    }
+
+    /*
+     * Largest datagram with the current segment size
+     */
+    private int packetSize() {
+        return maxSegment + GUDPPacket.MAX_OVERHEAD;
+    }
+
+    /*
+     * Token bucket: whether a packet of length bytes may be sent now. The
+     * bucket holds at most two maximum size packets, so bursts stay small.
+     */
+    public boolean paceAllows(int length) {
+        double rate = currentRate();
+        if (rate <= 0)
+            return true;
+        long now = System.nanoTime();
+        double depth = 2.0 * Math.max(length, packetSize());
+        tokens = Math.min(depth, tokens + rate * (now - lastRefill) / 1e9);
+        lastRefill = now;
+        return tokens >= length;
+    }
+
+    /*
+     * Take length bytes from the bucket. Retransmissions do not wait for
+     * tokens, so they may leave it in debt, and new packets wait until it is
+     * paid off.
+     */
+    public void paced(int length) {
+        if (currentRate() > 0)
+            tokens -= length;
+    }
+
+    /*
+     * Milliseconds until the next unsent packet may go out, 0 if right away
+     */
+    public long paceDelay() {
+        double rate = currentRate();
+        if (rate <= 0 || !hasUnsent())
+            return 0;
+        GUDPPacket next = GUDPPacket.seqLEQ(nextseqnum, last) ? getPacket(nextseqnum) : peekPending();
+        int length = next == null ? packetSize() : next.getHeaderLength() + next.getPayloadLength();
+        double missing = length - tokens;
+        if (missing <= 0)
+            return 0;
+        return (long) Math.ceil(missing * 1000 / rate);
+    }
+
+    public boolean getPathMTUDiscovery() {
+        return this.pmtud;
+    }
+
+    public void setPathMTUDiscovery(boolean value) {
+        this.pmtud = value;
+    }
+
+    public int getMaxSegment() {
+        return this.maxSegment;
+    }
+
+    /*
+     * Path MTU discovery: the largest datagram to probe. Must be set before
+     * probing starts.
+     */
+    public void setProbeCeiling(int size) {
+        this.probeHigh = size + 1;
+    }
+
+    /*
+     * Path MTU discovery: the datagram size to probe now, 0 if none. Starts
+     * once the first RTT sample shows the peer is there, and bisects between
+     * the largest size that got through and the smallest that did not.
+     */
+    public int nextProbe(long now) {
+        if (!pmtud || srtt == 0)
+            return 0;
+        if (probeSize != 0) {
+            if (now - probeSent < Math.max(2 * srtt, 100000000L))
+                return 0;
+            if (++probeTries < PROBE_TRIES)
+                return probeSize; // lost, or too big: try once more
+            probeFailed();
+        }
+        if (probeHigh - probeLow <= PROBE_STEP)
+            return 0;
+        probeSize = (probeLow + probeHigh) / 2;
+        probeTries = 0;
+        return probeSize;
+    }
+
+    public void probeSent(long now) {
+        this.probeSent = now;
+    }
+
+    /*
+     * Path MTU discovery: the probe in flight is too big for the path
+     */
+    public void probeFailed() {
+        probeHigh = probeSize;
+        probeSize = 0;
+    }
+
+    /*
+     * Path MTU discovery: a probe of size bytes got through. New segments may
+     * grow so that DATA with every extension, and parity over it, still fit.
+     */
+    public void probeAcked(int size) {
+        if (probeSize == 0 || size != probeSize)
+            return;
+        probeLow = size;
+        probeSize = 0;
+        maxSegment = Math.max(GUDPPacket.MAX_DATA_LEN, probeLow - GUDPPacket.MAX_OVERHEAD);
+    }
+
+    /*
+     * Path MTU discovery: large DATA keeps timing out, the path may have
+     * changed to a smaller MTU. New segments fall back to MAX_DATA_LEN and the
+     * search starts over below the size that stopped working. Return false if
+     * the segment size was not raised in the first place.
+     */
+    public boolean blackHole() {
+        if (maxSegment <= GUDPPacket.MAX_DATA_LEN)
+            return false;
+        probeHigh = probeLow;
+        probeLow = GUDPPacket.MAX_DATAGRAM_LEN;
+        probeSize = 0;
+        maxSegment = GUDPPacket.MAX_DATA_LEN;
+        return true;
+    }
+
+    public int getFecBlock() {
+        return this.fecBlock;
+    }
+
+    public void setFecBlock(int packets) {
+        this.fecBlock = packets;
+    }
+
+    /*
+     * FEC sender: add the datagram of a first transmission to the current
+     * block. Return true when the block is full and its parity is due.
+     */
+    public boolean fecAdd(int seq, byte[] data, int length) {
+        if (fecCount == 0) {
+            fecFirst = seq;
+            fecLength = 0;
+            fecLengthXor = 0;
+            if (fecXor.length < GUDPPacket.MAX_PACKET_LEN)
+                fecXor = new byte[GUDPPacket.MAX_PACKET_LEN];
+            else
+                Arrays.fill(fecXor, (byte) 0);
+        }
+        if (fecXor.length < length)
+            fecXor = Arrays.copyOf(fecXor, length); // segment grew with path MTU discovery
+        length = fecXor(fecXor, 0, data, length);
+        fecLength = Math.max(fecLength, length);
+        fecLengthXor ^= length;
+        fecCount++;
+        return fecCount >= fecBlock;
+    }
+
+    /*
+     * FEC covers a DATA datagram without its piggybacked ACK, because a
+     * retransmission of the same packet may carry another ACK, or none. XOR
+     * that form of the datagram in data into parity at offset, and return
+     * its length.
+     */
+    private static int fecXor(byte[] parity, int offset, byte[] data, int length) {
+        int skip = (data[2] & (GUDPPacket.FLAG_ACK >> 8)) != 0 ? GUDPPacket.ACK_EXT_SIZE : 0;
+        for (int i = 0; i < GUDPPacket.HEADER_SIZE; i++) {
+            parity[offset + i] ^= data[i];
+        }
+        if (skip > 0)
+            parity[offset + 2] ^= (byte) (GUDPPacket.FLAG_ACK >> 8); // clear the flag again
+        for (int i = GUDPPacket.HEADER_SIZE + skip; i < length; i++) {
+            parity[offset + i - skip] ^= data[i];
+        }
+        return length - skip;
+    }
+
+    /*
+     * FEC sender: the parity packet for the current block, which may be
+     * shorter than fecBlock. Starts a new block. Null if the block is empty.
+     */
+    public GUDPPacket fecParity() {
+        if (fecCount == 0)
+            return null;
+        ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE + GUDPPacket.FEC_EXT_SIZE + fecLength);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putShort(GUDPPacket.HEADER_SIZE, (short) fecCount);
+        buffer.putShort(GUDPPacket.HEADER_SIZE + 2, (short) fecLengthXor);
+        System.arraycopy(fecXor, 0, buffer.array(), GUDPPacket.HEADER_SIZE + GUDPPacket.FEC_EXT_SIZE, fecLength);
+        GUDPPacket parity = new GUDPPacket(buffer);
+        parity.setVersion(GUDPPacket.GUDP_VERSION);
+        parity.setType(GUDPPacket.TYPE_FEC);
+        parity.setSeqno(fecFirst);
+        parity.setPayloadLength(GUDPPacket.FEC_EXT_SIZE + fecLength);
+        parity.setSocketAddress(remoteEndPoint);
+        fecCount = 0;
+        return parity;
+    }
+
+    /*
+     * FEC receiver: remember a received DATA packet. Only the last
+     * MAX_FEC_BLOCK packets before expectedseqnum are kept, plus held ones,
+     * and only once the peer has sent parity.
+     */
+    public void fecCache(GUDPPacket gpacket) {
+        if (!fecSeen)
+            return;
+        fecCache.put(gpacket.getSeqno(), gpacket);
+        if (fecCache.size() > 2 * MAX_FEC_BLOCK + maxHold) {
+            Iterator<Integer> iter = fecCache.keySet().iterator();
+            while (iter.hasNext()) {
+                if (GUDPPacket.seqLT(iter.next(), expectedseqnum - MAX_FEC_BLOCK))
+                    iter.remove();
+            }
+        }
+    }
+
+    /*
+     * FEC receiver: rebuild the one DATA packet of the block that has not
+     * arrived, from the parity and the rest of the block. Return null if the
+     * block is complete, already delivered, or lost more than one packet.
+     */
+    public GUDPPacket fecRecover(GUDPPacket parity) throws IOException {
+        fecSeen = true;
+        int length = parity.getPayloadLength() - GUDPPacket.FEC_EXT_SIZE;
+        if (length <= 0)
+            return null;
+        byte[] payload = new byte[parity.getPayloadLength()];
+        parity.getPayload(payload, payload.length);
+        ByteBuffer ext = ByteBuffer.wrap(payload);
+        ext.order(ByteOrder.BIG_ENDIAN);
+        int count = ext.getShort(0);
+        int lengthXor = ext.getShort(2) & 0xffff;
+        if (count <= 0 || count > MAX_FEC_BLOCK)
+            return null;
+        int missing = 0;
+        int missingSeq = 0;
+        for (int i = 0; i < count; i++) {
+            int seq = parity.getSeqno() + i;
+            GUDPPacket gpacket = fecCache.get(seq);
+            if (gpacket == null) {
+                missing++;
+                missingSeq = seq;
+                continue;
+            }
+            int len = gpacket.getHeaderLength() + gpacket.getPayloadLength();
+            if ((gpacket.getFlags() & GUDPPacket.FLAG_ACK) != 0)
+                len -= GUDPPacket.ACK_EXT_SIZE;
+            if (len > length)
+                return null;
+            fecXor(payload, GUDPPacket.FEC_EXT_SIZE, gpacket.getBytes(),
+                    gpacket.getHeaderLength() + gpacket.getPayloadLength());
+            lengthXor ^= len;
+        }
+        if (missing != 1 || GUDPPacket.seqLT(missingSeq, expectedseqnum) || holdMap.containsKey(missingSeq)
+                || lengthXor < GUDPPacket.HEADER_SIZE || lengthXor > length)
+            return null;
+        byte[] data = Arrays.copyOfRange(payload, GUDPPacket.FEC_EXT_SIZE, GUDPPacket.FEC_EXT_SIZE + lengthXor);
+        GUDPPacket gpacket = GUDPPacket.unpack(new DatagramPacket(data, data.length, parity.getSocketAddress()));
+        if (gpacket.getType() != GUDPPacket.TYPE_DATA || gpacket.getSeqno() != missingSeq)
+            return null;
+        return gpacket;
+    }
+
+    public boolean getReady() {
+        return this.ready;
+    }
+
+    public void setReady(boolean value) {
+        this.ready = value;
+    }
+
+    public long getLastActive() {
+        return this.lastActive;
+    }
+
+    /*
+     * Record activity on this end point
+     */
+    public void touch() {
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    public boolean isIdle(long now, long idleTimeout) {
+        return now - lastActive > idleTimeout;
+    }
+
+    /*
+     * Receiver: whether packets that were already ACKed have not reached the
+     * application yet, in the receive queue or waiting for reassembly
+     */
+    public boolean hasUndelivered() {
+        return !bufferQueue.isEmpty() || fragmentBytes > 0;
+    }
+
+    /*
+     * Bytes of packet data held by this end point
+     */
+    public long getMemoryUsage() {
+        return queuedBytes + heldBytes + fragmentBytes;
+    }
+
+    public long getMaxMessage() {
+        return this.maxMessage;
+    }
+
+    public void setMaxMessage(long bytes) {
+        this.maxMessage = bytes;
+    }
+
+    public long getMaxFragmentBytes() {
+        return this.maxFragmentBytes;
+    }
+
+    public void setMaxFragmentBytes(long bytes) {
+        this.maxFragmentBytes = bytes;
+    }
+
+    public int getMaxHold() {
+        return this.maxHold;
+    }
+
+    public void setMaxHold(int packets) {
+        this.maxHold = packets;
+    }
+
     public boolean getDropSend() {
         return this.dropSend;
     }
@@ -172,17 +704,240 @@ class GUDPEndPoint {
 
     public void add(GUDPPacket gpacket) {
         bufferQueue.add(gpacket);
+        queuedBytes += packetBytes(gpacket);
     }
 
     public void remove(GUDPPacket gpacket) {
-        bufferQueue.remove(gpacket);
+        if (bufferQueue.remove(gpacket)) {
+            queuedBytes -= packetBytes(gpacket);
+            gpacket.release();
+        }
     }
 
     /*
      * Retrieve and remove the first packet from the bufferQueue
      */
     public GUDPPacket remove() {
-        return bufferQueue.poll();
+        GUDPPacket gpacket = bufferQueue.poll();
+        if (gpacket != null) {
+            queuedBytes -= packetBytes(gpacket);
+            gpacket.release();
+        }
+        return gpacket;
+    }
+
+    /*
+     * Sender: queue a packet of the given priority class. It is assigned the
+     * next seqno when SenderThread draws it into the window.
+     */
+    public void enqueue(GUDPPacket gpacket, GUDPSocket.priority prio) {
+        pendingQueues.get(prio.ordinal()).add(gpacket);
+        pendingCount++;
+        queuedBytes += packetBytes(gpacket);
+    }
+
+    /*
+     * Sender: queue the FIN. It is drawn only after every other pending packet.
+     */
+    public void enqueueLast(GUDPPacket gpacket) {
+        pendingQueues.get(pendingQueues.size() - 1).add(gpacket);
+        pendingCount++;
+        queuedBytes += packetBytes(gpacket);
+    }
+
+    /*
+     * Sender: the packet draw() would return next, without drawing it
+     */
+    public GUDPPacket peekPending() {
+        if (!requeue.isEmpty())
+            return requeue.peek();
+        if (drawClass >= 0 && !pendingQueues.get(drawClass).isEmpty())
+            return pendingQueues.get(drawClass).peek();
+        for (ArrayDeque<GUDPPacket> queue : pendingQueues) {
+            if (!queue.isEmpty())
+                return queue.peek();
+        }
+        return null;
+    }
+
+    /*
+     * Sender: move the first packet of the highest non-empty priority class
+     * into the window, with seqno last + 1. Within a class, packets keep the
+     * order in which they were sent. The fragments of a message are drawn
+     * together, a higher class does not cut in between them. Return null if
+     * nothing is pending.
+     */
+    public GUDPPacket draw() {
+        if (!requeue.isEmpty())
+            return drawn(requeue.poll());
+        if (drawClass >= 0 && pendingQueues.get(drawClass).isEmpty())
+            drawClass = -1; // the rest of the message expired or was dropped
+        for (int i = 0; i < pendingQueues.size(); i++) {
+            GUDPPacket gpacket = pendingQueues.get(drawClass >= 0 ? drawClass : i).poll();
+            if (gpacket != null) {
+                if ((gpacket.getFlags() & GUDPPacket.FLAG_MORE) != 0)
+                    drawClass = drawClass >= 0 ? drawClass : i;
+                else
+                    drawClass = -1;
+                return drawn(gpacket);
+            }
+        }
+        return null;
+    }
+
+    private GUDPPacket drawn(GUDPPacket gpacket) {
+        pendingCount--;
+        last = last + 1;
+        gpacket.setSeqno(last);
+        if ((gpacket.getFlags() & GUDPPacket.FLAG_STREAM) != 0) {
+            // numbered in the order of the window, so each stream is in GBN order too
+            int seq = streamNext.getOrDefault(gpacket.getStream(), 0);
+            gpacket.setStreamSeq(seq);
+            streamNext.put(gpacket.getStream(), seq + 1);
+        }
+        bufferQueue.add(gpacket);
+        return gpacket;
+    }
+
+    /*
+     * Sender: after a black hole, take the packets from the first one larger
+     * than maxSegment to the end of the window back out of it, split them to
+     * maxSegment, and draw them again before anything pending. They get new
+     * seqnos and stream seqnos from that packet on. It did not get through,
+     * so nothing after it was delivered in order, and it carries FLAG_RESYNC
+     * so that the receiver drops what it holds after it. Pending packets are
+     * split too. Return false if no packet in the window is too large.
+     */
+    public boolean refragment() {
+        for (ArrayDeque<GUDPPacket> queue : pendingQueues) {
+            ArrayList<GUDPPacket> split = new ArrayList<>();
+            for (GUDPPacket gpacket : queue) {
+                ArrayList<GUDPPacket> pieces = gpacket.split(maxSegment);
+                if (pieces.get(0) != gpacket) {
+                    pendingCount += pieces.size() - 1;
+                    queuedBytes -= packetBytes(gpacket);
+                    for (GUDPPacket piece : pieces)
+                        queuedBytes += packetBytes(piece);
+                    gpacket.release();
+                }
+                split.addAll(pieces);
+            }
+            queue.clear();
+            queue.addAll(split);
+        }
+        int first = nextseqnum;
+        for (GUDPPacket gpacket : bufferQueue) {
+            if (GUDPPacket.seqLT(gpacket.getSeqno(), nextseqnum) && gpacket.getPayloadLength() > maxSegment
+                    && gpacket.getType() == GUDPPacket.TYPE_DATA) {
+                first = gpacket.getSeqno();
+                break;
+            }
+        }
+        if (first == nextseqnum)
+            return false;
+        HashMap<Integer, Integer> rewound = new HashMap<>();
+        Iterator<GUDPPacket> iter = bufferQueue.iterator();
+        while (iter.hasNext()) {
+            GUDPPacket gpacket = iter.next();
+            if (GUDPPacket.seqLT(gpacket.getSeqno(), first))
+                continue;
+            iter.remove();
+            queuedBytes -= packetBytes(gpacket);
+            if ((gpacket.getFlags() & GUDPPacket.FLAG_STREAM) != 0)
+                rewound.putIfAbsent(gpacket.getStream(), gpacket.getStreamSeq());
+            ArrayList<GUDPPacket> pieces = gpacket.split(maxSegment);
+            if (pieces.get(0) != gpacket)
+                gpacket.release();
+            for (GUDPPacket piece : pieces) {
+                requeue.add(piece);
+                pendingCount++;
+                queuedBytes += packetBytes(piece);
+            }
+        }
+        streamNext.putAll(rewound);
+        GUDPPacket head = requeue.peek();
+        head.setFlags((short) (head.getFlags() | GUDPPacket.FLAG_RESYNC));
+        last = first - 1;
+        nextseqnum = first;
+        fecCount = 0; // the parity block so far covers seqnos that are given away again
+        return true;
+    }
+
+    /*
+     * Sender: drop pending packets whose deadline has passed. They never got a
+     * seqno, so the receiver does not need to know. Return the number dropped.
+     */
+    public int expirePending(long now) {
+        int dropped = 0;
+        for (ArrayDeque<GUDPPacket> queue : pendingQueues) {
+            Iterator<GUDPPacket> iter = queue.iterator();
+            while (iter.hasNext()) {
+                GUDPPacket gpacket = iter.next();
+                if (gpacket.isExpired(now)) {
+                    iter.remove();
+                    pendingCount--;
+                    queuedBytes -= packetBytes(gpacket);
+                    gpacket.release();
+                    dropped++;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /*
+     * Sender: the first seqno from base on that is not past its deadline.
+     * Packets from base up to it are abandoned, the receiver is told to skip
+     * them with a FWD. Equal to base if nothing is abandoned.
+     */
+    public int expiredUpTo(long now) {
+        int seq = base;
+        while (GUDPPacket.seqLT(seq, nextseqnum)) {
+            GUDPPacket gpacket = getPacket(seq);
+            if (gpacket == null || !gpacket.isExpired(now))
+                break;
+            seq++;
+        }
+        return seq;
+    }
+
+    private static int packetBytes(GUDPPacket gpacket) {
+        return gpacket.getHeaderLength() + gpacket.getPayloadLength();
+    }
+
+    /*
+     * Check whether adding a message of the given number of packets and
+     * payload length would exceed the queue limits. An empty queue always
+     * accepts one message, so that a message larger than the limits cannot
+     * block forever.
+     */
+    public boolean isFullQueue(int packets, int length) {
+        if (maxQueuePackets > 0 && !isEmptyQueue() && queueSize() + packets > maxQueuePackets)
+            return true;
+        return maxQueueBytes > 0 && !isEmptyQueue()
+                && queuedBytes + (long) GUDPPacket.HEADER_SIZE * packets + length > maxQueueBytes;
+    }
+
+    /*
+     * Drop the oldest pending message of the lowest priority class that has
+     * one, with all its fragments. Pending packets have no seqno yet, so
+     * nothing needs renumbering. The FIN is never dropped. Return false if
+     * nothing can be dropped.
+     */
+    public boolean dropOldest() {
+        for (int i = pendingQueues.size() - 2; i >= 0; i--) {
+            ArrayDeque<GUDPPacket> queue = pendingQueues.get(i);
+            if (queue.isEmpty())
+                continue;
+            do {
+                GUDPPacket victim = queue.poll();
+                pendingCount--;
+                queuedBytes -= packetBytes(victim);
+                victim.release();
+            } while (!queue.isEmpty() && (queue.peek().getFlags() & GUDPPacket.FLAG_CONT) != 0);
+            return true;
+        }
+        return false;
     }
 
     /*
@@ -205,8 +960,8 @@ class GUDPEndPoint {
      * Assuming those packets were successfully received
      */
     public void removeAllACK(int ack) {
-        while ((!isEmptyQueue()) && (bufferQueue.peek().getSeqno() <= ack)) {
-            bufferQueue.poll();
+        while ((!bufferQueue.isEmpty()) && GUDPPacket.seqLEQ(bufferQueue.peek().getSeqno(), ack)) {
+            remove();
         }
     }
 
@@ -214,7 +969,30 @@ class GUDPEndPoint {
      * Remove all packets from bufferQueue and reset all variables
      */
     public void clear() {
+        for (GUDPPacket gpacket : bufferQueue) {
+            gpacket.release();
+        }
         bufferQueue.clear();
+        for (GUDPPacket gpacket : requeue) {
+            gpacket.release();
+        }
+        requeue.clear();
+        for (ArrayDeque<GUDPPacket> queue : pendingQueues) {
+            for (GUDPPacket gpacket : queue) {
+                gpacket.release();
+            }
+            queue.clear();
+        }
+        pendingCount = 0;
+        queuedBytes = 0;
+        holdMap.clear();
+        heldBytes = 0;
+        fecCache.clear();
+        fecCount = 0;
+        drawClass = -1;
+        streams.clear();
+        fragmentBytes = 0;
+        streamNext.clear();
         this.setRetry(0);
         this.setBase(0);
         this.setNextseqnum(0);
@@ -223,12 +1001,197 @@ class GUDPEndPoint {
         this.setFinished(false);
     }
 
+    /*
+     * Hold a packet that arrived ahead of expectedseqnum until the gap is filled.
+     * Return false if the packet is outside the holding area or already held.
+     */
+    public boolean hold(GUDPPacket gpacket) {
+        int seq = gpacket.getSeqno();
+        if (!GUDPPacket.seqLT(expectedseqnum, seq) || !GUDPPacket.seqLT(seq, expectedseqnum + maxHold)
+                || holdMap.containsKey(seq))
+            return false;
+        holdMap.put(seq, gpacket);
+        heldBytes += packetBytes(gpacket);
+        return true;
+    }
+
+    /*
+     * Receiver: a packet with FLAG_RESYNC arrived at seq. The sender gave the
+     * seqnos from seq on to other packets, so drop what is held or cached for
+     * FEC from there on. It is sent again under its new seqno.
+     */
+    public void resync(int seq) {
+        Iterator<Integer> iter = holdMap.keySet().iterator();
+        while (iter.hasNext()) {
+            int held = iter.next();
+            if (GUDPPacket.seqLEQ(seq, held)) {
+                heldBytes -= packetBytes(holdMap.get(held));
+                iter.remove();
+            }
+        }
+        fecCache.keySet().removeIf(cached -> GUDPPacket.seqLEQ(seq, cached));
+    }
+
+    /*
+     * Take the held packet with the given sequence number, or null
+     */
+    public GUDPPacket unhold(int seq) {
+        GUDPPacket gpacket = holdMap.remove(seq);
+        if (gpacket != null)
+            heldBytes -= packetBytes(gpacket);
+        return gpacket;
+    }
+
+    private StreamState stream(int stream) {
+        StreamState state = streams.get(stream);
+        if (state == null) {
+            state = new StreamState();
+            streams.put(stream, state);
+        }
+        return state;
+    }
+
+    /*
+     * Receiver: take the next DATA packet of its stream. Fragments are kept
+     * aside until the last one of their message arrives, then the whole
+     * message moves to the receive queue, without copying. Return true if a
+     * message was completed.
+     */
+    public boolean reassemble(GUDPPacket gpacket) {
+        boolean more = (gpacket.getFlags() & GUDPPacket.FLAG_MORE) != 0;
+        boolean cont = (gpacket.getFlags() & GUDPPacket.FLAG_CONT) != 0;
+        StreamState state = stream(gpacket.getStream());
+        if ((gpacket.getFlags() & GUDPPacket.FLAG_STREAM) != 0) {
+            if (GUDPPacket.seqLT(gpacket.getStreamSeq(), state.expected)) {
+                // went to the application ahead of a gap, then the sender resynced and sent it again
+                return false;
+            }
+            if (gpacket.getStreamSeq() != state.expected) {
+                // packets of this stream were skipped
+                dropFragments(state);
+            }
+            state.expected = gpacket.getStreamSeq() + 1;
+        }
+        if (!cont && !state.fragments.isEmpty()) {
+            // the tail of the previous message was lost
+            dropFragments(state);
+        }
+        if (cont && state.fragments.isEmpty()) {
+            // the head of this message was lost or dropped
+            return false;
+        }
+        if (!more && !cont) {
+            add(gpacket);
+            return true;
+        }
+        if (state.fragmentBytes + gpacket.getPayloadLength() > maxMessage) {
+            // too large: drop it, the remaining fragments find no head
+            dropFragments(state);
+            return false;
+        }
+        while (fragmentBytes > 0 && fragmentBytes + gpacket.getPayloadLength() > maxFragmentBytes) {
+            // too much held over all streams: give up the message that began first
+            StreamState oldest = oldestPartial();
+            dropFragments(oldest);
+            if (oldest == state)
+                return false;
+        }
+        if (state.fragments.isEmpty())
+            state.started = ++messagesStarted;
+        state.fragments.add(gpacket);
+        state.fragmentBytes += gpacket.getPayloadLength();
+        fragmentBytes += gpacket.getPayloadLength();
+        if (more)
+            return false;
+        // the fragments go in one after the other, so a message is one run in bufferQueue
+        for (GUDPPacket fragment : state.fragments) {
+            add(fragment);
+        }
+        dropFragments(state);
+        return true;
+    }
+
+    /*
+     * Receiver: drop the fragments of an incomplete message on stream 0, after
+     * packets in between were skipped. Other streams notice skipped packets
+     * from their own seqnos.
+     */
+    public void dropFragments() {
+        StreamState state = streams.get(0);
+        if (state != null)
+            dropFragments(state);
+    }
+
+    private StreamState oldestPartial() {
+        StreamState oldest = null;
+        for (StreamState state : streams.values()) {
+            if (!state.fragments.isEmpty() && (oldest == null || state.started < oldest.started))
+                oldest = state;
+        }
+        return oldest;
+    }
+
+    private void dropFragments(StreamState state) {
+        fragmentBytes -= state.fragmentBytes;
+        state.fragments.clear();
+        state.fragmentBytes = 0;
+    }
+
+    /*
+     * Receiver: a held packet that is next in its stream, other than stream 0.
+     * It can be delivered before the gap in front of it is filled, because the
+     * gap belongs to other streams. Null if there is none.
+     */
+    public GUDPPacket nextInStream(int stream) {
+        if (stream == 0)
+            return null;
+        int expected = stream(stream).expected;
+        for (GUDPPacket gpacket : holdMap.values()) {
+            if (!gpacket.getDelivered() && gpacket.getStream() == stream
+                    && gpacket.getStreamSeq() == expected)
+                return gpacket;
+        }
+        return null;
+    }
+
+    /*
+     * Receiver: take the next complete message from the receive queue, on the
+     * given stream or on any stream if stream is negative. Return its packets,
+     * or null if there is no such message.
+     */
+    public ArrayList<GUDPPacket> removeMessage(int stream) {
+        ArrayList<GUDPPacket> message = new ArrayList<>();
+        Iterator<GUDPPacket> iter = bufferQueue.iterator();
+        while (iter.hasNext()) {
+            GUDPPacket gpacket = iter.next();
+            if (message.isEmpty() && stream >= 0 && gpacket.getStream() != stream)
+                continue;
+            iter.remove();
+            queuedBytes -= packetBytes(gpacket);
+            message.add(gpacket);
+            if ((gpacket.getFlags() & GUDPPacket.FLAG_MORE) == 0)
+                return message;
+        }
+        return message.isEmpty() ? null : message;
+    }
+
+    public int heldSize() {
+        return holdMap.size();
+    }
+
+    /*
+     * Whether there are packets that have not been sent yet
+     */
+    public boolean hasUnsent() {
+        return pendingCount > 0 || (GUDPPacket.seqLEQ(nextseqnum, last) && !bufferQueue.isEmpty());
+    }
+
     public boolean isEmptyQueue() {
-        return bufferQueue.isEmpty();
+        return bufferQueue.isEmpty() && pendingCount == 0;
     }
 
     public int queueSize() {
-        return bufferQueue.size();
+        return bufferQueue.size() + pendingCount;
     }
 
     /*
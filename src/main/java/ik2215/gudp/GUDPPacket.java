@@ -5,6 +5,7 @@ import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 
 public class GUDPPacket {
     public static final short GUDP_VERSION = 1;
@@ -16,10 +17,45 @@ public class GUDPPacket {
     public static final short TYPE_BSN = 2;
     public static final short TYPE_ACK = 3;
     public static final short TYPE_FIN = 4;
+    public static final short TYPE_FWD = 5; // receiver skips ahead to seqno, abandoned packets before it
+    public static final short TYPE_FEC = 6; // XOR parity over the DATA block starting at seqno
+    public static final short TYPE_PROBE = 7; // path MTU probe, padded to the size being tested
+    public static final short TYPE_PROBE_ACK = 8; // probe arrived, seqno is its datagram length
+    public static final Integer MAX_UDP_LEN = 65507; // largest UDP payload over IPv4
+
+    /*
+     * Flags live in the high byte of the type field. Each flag adds an
+     * extension field after the 8-byte header, in the order listed here.
+     */
+    public static final short TYPE_MASK = 0x00ff;
+    public static final short FLAG_ACK = 0x0100; // 4 bytes: piggybacked cumulative ACK
+    public static final short ACK_EXT_SIZE = 4;
+    /* Fragmentation flags, no extension field: a message larger than MAX_DATA_LEN */
+    public static final short FLAG_MORE = 0x0200; // more fragments of this message follow
+    public static final short FLAG_CONT = 0x0400; // continues a message, not its first fragment
+    public static final short FLAG_STREAM = 0x0800; // 6 bytes: stream id and seqno within the stream
+    public static final short STREAM_EXT_SIZE = 6;
+    public static final int MAX_STREAM = 0xffff; // stream 0 is the plain stream, without extension
+    public static final short FLAG_KEEP = 0x1000; // on FIN, no extension field: the session stays open for more DATA
+    public static final short FLAG_RESYNC = 0x2000; // on DATA, no extension field: seqnos were reassigned from here on
+
+    /* A parity payload starts with the block size and the XOR of the datagram lengths */
+    public static final short FEC_EXT_SIZE = 4;
+    /* Bytes a datagram may add to its DATA payload: header, extensions, and parity over it */
+    public static final Integer MAX_OVERHEAD = HEADER_SIZE + ACK_EXT_SIZE + STREAM_EXT_SIZE + HEADER_SIZE
+            + FEC_EXT_SIZE;
+    /* Largest datagram on the wire with the default payload size */
+    public static final Integer MAX_PACKET_LEN = MAX_DATA_LEN + MAX_OVERHEAD;
 
     private InetSocketAddress sockaddr;
     private ByteBuffer byteBuffer;
     private Integer payloadLength;
+    private long sentTime = 0L; // System.nanoTime() of the first transmission, for RTT samples
+    private boolean retransmitted = false; // no RTT samples from retransmitted packets (Karn)
+    private long deadline = 0L; // System.nanoTime() after which the packet is abandoned, 0 for never
+    private boolean delivered = false; // receiver: handed to its stream before the gap before it was filled
+    private SharedPayload shared; // sender: payload kept there instead of after the header
+    private int sharedOffset;
 
     /*
      * Application send processing: Build a DATA GUDP packet to encaspulate payload
@@ -29,27 +65,187 @@ public class GUDPPacket {
      */
 
     public static GUDPPacket encapsulate(DatagramPacket packet) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(packet.getLength() + HEADER_SIZE);
+        return encapsulate(packet, 0);
+    }
+
+    /*
+     * Same as encapsulate(packet), on the given stream. Any stream but 0 adds
+     * the stream extension, its seqno within the stream is set when sent.
+     */
+    public static GUDPPacket encapsulate(DatagramPacket packet, int stream) throws IOException {
+        int extension = stream == 0 ? 0 : STREAM_EXT_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(packet.getLength() + HEADER_SIZE + extension);
         buffer.order(ByteOrder.BIG_ENDIAN);
         GUDPPacket gudppacket = new GUDPPacket(buffer);
         gudppacket.setType(TYPE_DATA);
         gudppacket.setVersion(GUDP_VERSION);
-        byte[] data = packet.getData();
-        gudppacket.setPayload(data);
+        if (stream != 0) {
+            gudppacket.setFlags(FLAG_STREAM);
+            buffer.putShort(HEADER_SIZE, (short) stream);
+        }
+        gudppacket.setPayload(packet.getData(), packet.getOffset(), packet.getLength());
         gudppacket.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
         return gudppacket;
     }
 
+    /*
+     * Application send processing for messages of any size: split the payload
+     * into DATA packets of at most segment bytes. All but the last fragment
+     * carry FLAG_MORE, all but the first carry FLAG_CONT. A message that fits
+     * in one packet has neither, so it looks the same as before.
+     * The payload is gathered from data, which may be heap, direct or mapped
+     * buffers. Each byte is copied once, straight into the packet that carries
+     * it. The positions of the buffers are left unchanged.
+     */
+    public static ArrayList<GUDPPacket> fragment(ByteBuffer[] data, InetSocketAddress sockaddr, int segment,
+            int stream) throws IOException {
+        int total = 0;
+        for (ByteBuffer buffer : data) {
+            total += buffer.remaining();
+        }
+        ArrayList<GUDPPacket> fragments = new ArrayList<>();
+        int index = 0;
+        ByteBuffer src = data.length > 0 ? data[0].duplicate() : ByteBuffer.allocate(0);
+        int offset = 0;
+        do {
+            int length = Math.min(segment, total - offset);
+            GUDPPacket gudppacket = newFragment(length, offset, total, stream, true);
+            ByteBuffer buffer = gudppacket.byteBuffer;
+            while (buffer.hasRemaining()) {
+                while (!src.hasRemaining())
+                    src = data[++index].duplicate();
+                int n = Math.min(buffer.remaining(), src.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                buffer.put(part);
+                src.position(src.position() + n);
+            }
+            gudppacket.setPayloadLength(length);
+            gudppacket.setSocketAddress(sockaddr);
+            fragments.add(gudppacket);
+            offset += length;
+        } while (offset < total);
+        return fragments;
+    }
+
+    /*
+     * Same as fragment(), for a payload shared between destinations. The
+     * packets only hold their headers and refer to payload for the rest.
+     * Each takes a reference to payload, given up by release().
+     */
+    public static ArrayList<GUDPPacket> share(SharedPayload payload, InetSocketAddress sockaddr, int segment,
+            int stream) throws IOException {
+        int total = payload.length();
+        ArrayList<GUDPPacket> fragments = new ArrayList<>();
+        int offset = 0;
+        do {
+            int length = Math.min(segment, total - offset);
+            GUDPPacket gudppacket = newFragment(length, offset, total, stream, false);
+            payload.retain();
+            gudppacket.shared = payload;
+            gudppacket.sharedOffset = offset;
+            gudppacket.setPayloadLength(length);
+            gudppacket.setSocketAddress(sockaddr);
+            fragments.add(gudppacket);
+            offset += length;
+        } while (offset < total);
+        return fragments;
+    }
+
+    /*
+     * Sender: split a DATA packet into packets of at most segment bytes of
+     * payload, with the fragment flags they would have had if the message
+     * had been fragmented that way in the first place. The pieces have no
+     * seqno yet, a shared payload is referred to, not copied. A packet that
+     * is small enough comes back as it is.
+     */
+    public ArrayList<GUDPPacket> split(int segment) {
+        ArrayList<GUDPPacket> pieces = new ArrayList<>();
+        int total = getPayloadLength();
+        if (getType() != TYPE_DATA || total <= segment) {
+            pieces.add(this);
+            return pieces;
+        }
+        short flags = (short) (getFlags() & ~(FLAG_MORE | FLAG_CONT | FLAG_RESYNC));
+        for (int offset = 0; offset < total; offset += segment) {
+            int length = Math.min(segment, total - offset);
+            GUDPPacket piece = newFragment(length, 0, length, getStream(), shared == null);
+            short pieceFlags = flags;
+            if (offset > 0 || (getFlags() & FLAG_CONT) != 0)
+                pieceFlags |= FLAG_CONT;
+            if (offset + length < total || (getFlags() & FLAG_MORE) != 0)
+                pieceFlags |= FLAG_MORE;
+            piece.setFlags(pieceFlags);
+            if (shared == null) {
+                piece.byteBuffer.put(byteBuffer.array(), getHeaderLength() + offset, length);
+            } else {
+                shared.retain();
+                piece.shared = shared;
+                piece.sharedOffset = sharedOffset + offset;
+            }
+            piece.setPayloadLength(length);
+            piece.setSocketAddress(sockaddr);
+            piece.setDeadline(deadline);
+            pieces.add(piece);
+        }
+        return pieces;
+    }
+
+    /*
+     * A DATA packet for length bytes at offset in a message of total bytes,
+     * with room for the payload after the header if inline is set. The
+     * buffer is positioned at the payload.
+     */
+    private static GUDPPacket newFragment(int length, int offset, int total, int stream, boolean inline) {
+        int extension = stream == 0 ? 0 : STREAM_EXT_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + extension + (inline ? length : 0));
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        GUDPPacket gudppacket = new GUDPPacket(buffer);
+        gudppacket.setType(TYPE_DATA);
+        gudppacket.setVersion(GUDP_VERSION);
+        short flags = stream == 0 ? 0 : FLAG_STREAM;
+        if (offset > 0)
+            flags |= FLAG_CONT;
+        if (offset + length < total)
+            flags |= FLAG_MORE;
+        gudppacket.setFlags(flags);
+        if (stream != 0)
+            buffer.putShort(HEADER_SIZE, (short) stream);
+        buffer.position(HEADER_SIZE + extension);
+        return gudppacket;
+    }
+
+    /*
+     * Sender: the packet is no longer needed, give up its reference to a
+     * shared payload
+     */
+    public void release() {
+        if (shared != null) {
+            shared.release();
+            shared = null;
+        }
+    }
+
     /*
      * Application receive processing: Extract application payload into a
      * DatagramPacket,
      * with data and socket address.
      */
     public void decapsulate(DatagramPacket packet) throws IOException {
-        int plength = getPayloadLength();
-        getPayload(packet.getData(), plength);
-        packet.setLength(plength);
+        decapsulate(packet, 0);
+    }
+
+    /*
+     * Same as decapsulate(packet), but place the payload at offset in the data
+     * buffer of packet, after the fragments before it. The payload is
+     * truncated if the buffer is too small. Return the message length so far.
+     */
+    public int decapsulate(DatagramPacket packet, int offset) throws IOException {
+        int plength = Math.max(0, Math.min(getPayloadLength(), packet.getData().length - offset));
+        getPayload(packet.getData(), offset, plength);
+        packet.setLength(offset + plength);
         packet.setSocketAddress(getSocketAddress());
+        return offset + plength;
     }
 
     /*
@@ -64,7 +260,9 @@ public class GUDPPacket {
         ByteBuffer buffer = ByteBuffer.wrap(data, 0, plength);
         buffer.order(ByteOrder.BIG_ENDIAN);
         GUDPPacket gudppacket = new GUDPPacket(buffer);
-        gudppacket.setPayloadLength(plength - HEADER_SIZE);
+        if (plength < gudppacket.getHeaderLength())
+            throw new IOException(String.format("Too short GUDP extension header: %d bytes", plength));
+        gudppacket.setPayloadLength(plength - gudppacket.getHeaderLength());
         gudppacket.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
         return gudppacket;
     }
@@ -75,9 +273,70 @@ public class GUDPPacket {
      */
 
     public DatagramPacket pack() throws IOException {
-        int totlength = HEADER_SIZE + getPayloadLength();
-        InetSocketAddress socketAddress = getSocketAddress();
-        return new DatagramPacket(getBytes(), totlength, sockaddr);
+        return pack(null);
+    }
+
+    /*
+     * Same as pack(), but a shared payload is gathered from its buffers into
+     * scratch, so that sending it again allocates nothing. The datagram is
+     * only good until scratch is used again. A null scratch means a new array.
+     */
+    public DatagramPacket pack(byte[] scratch) {
+        int totlength = getHeaderLength() + getPayloadLength();
+        if (shared == null)
+            return new DatagramPacket(byteBuffer.array(), totlength, sockaddr);
+        byte[] dst = scratch != null ? scratch : new byte[totlength];
+        int header = getHeaderLength();
+        System.arraycopy(byteBuffer.array(), 0, dst, 0, header);
+        shared.copyTo(sharedOffset, dst, header, getPayloadLength());
+        return new DatagramPacket(dst, totlength, sockaddr);
+    }
+
+    /*
+     * Output processing with a piggybacked ACK: same as pack(), but the ACK
+     * extension is inserted right after the header. The packet itself is left
+     * unchanged, so a retransmission can carry a newer ACK.
+     */
+    public DatagramPacket packWithAck(int ack) throws IOException {
+        return packWithAck(ack, null);
+    }
+
+    /*
+     * Same as packWithAck(), put together in scratch as pack(byte[]) does
+     */
+    public DatagramPacket packWithAck(int ack, byte[] scratch) throws IOException {
+        if ((getFlags() & FLAG_ACK) != 0)
+            throw new IOException("GUDP packet already carries an ACK");
+        int length = getHeaderLength() + getPayloadLength();
+        byte[] src = byteBuffer.array();
+        byte[] dst = scratch != null ? scratch : new byte[length + ACK_EXT_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(dst);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.put(src, 0, HEADER_SIZE);
+        buffer.putShort(2, (short) (byteBuffer.getShort(2) | FLAG_ACK));
+        buffer.putInt(HEADER_SIZE, ack);
+        if (shared == null) {
+            System.arraycopy(src, HEADER_SIZE, dst, HEADER_SIZE + ACK_EXT_SIZE, length - HEADER_SIZE);
+        } else {
+            int header = getHeaderLength();
+            System.arraycopy(src, HEADER_SIZE, dst, HEADER_SIZE + ACK_EXT_SIZE, header - HEADER_SIZE);
+            shared.copyTo(sharedOffset, dst, header + ACK_EXT_SIZE, getPayloadLength());
+        }
+        return new DatagramPacket(dst, length + ACK_EXT_SIZE, sockaddr);
+    }
+
+    /*
+     * Serial number arithmetic (RFC 1982) for 32-bit sequence numbers:
+     * a comes before b when the signed distance from a to b is positive.
+     * This stays correct when seqno wraps around, as long as the two
+     * numbers are less than 2^31 apart.
+     */
+    public static boolean seqLT(int a, int b) {
+        return a - b < 0;
+    }
+
+    public static boolean seqLEQ(int a, int b) {
+        return a - b <= 0;
     }
 
     /*
@@ -88,10 +347,14 @@ public class GUDPPacket {
     }
 
     /*
-     * Serialization: Return packet as a byte array
+     * Serialization: Return packet as a byte array. A packet with a shared
+     * payload is put together in a new array; the send path uses pack(byte[])
+     * instead.
      */
     public byte[] getBytes() {
-        return byteBuffer.array();
+        if (shared == null)
+            return byteBuffer.array();
+        return pack(null).getData();
     }
 
     public short getVersion() {
@@ -99,7 +362,54 @@ public class GUDPPacket {
     }
 
     public short getType() {
-        return byteBuffer.getShort(2);
+        return (short) (byteBuffer.getShort(2) & TYPE_MASK);
+    }
+
+    public short getFlags() {
+        return (short) (byteBuffer.getShort(2) & ~TYPE_MASK);
+    }
+
+    /*
+     * Length of the header including the extension fields selected by flags
+     */
+    public int getHeaderLength() {
+        int length = HEADER_SIZE;
+        if ((getFlags() & FLAG_ACK) != 0)
+            length += ACK_EXT_SIZE;
+        if ((getFlags() & FLAG_STREAM) != 0)
+            length += STREAM_EXT_SIZE;
+        return length;
+    }
+
+    private int streamOffset() {
+        return (getFlags() & FLAG_ACK) != 0 ? HEADER_SIZE + ACK_EXT_SIZE : HEADER_SIZE;
+    }
+
+    /*
+     * Stream of the packet, 0 without the stream extension
+     */
+    public int getStream() {
+        if ((getFlags() & FLAG_STREAM) == 0)
+            return 0;
+        return byteBuffer.getShort(streamOffset()) & MAX_STREAM;
+    }
+
+    /*
+     * Seqno within the stream, only valid when FLAG_STREAM is set
+     */
+    public int getStreamSeq() {
+        return byteBuffer.getInt(streamOffset() + 2);
+    }
+
+    public void setStreamSeq(int seq) {
+        byteBuffer.putInt(streamOffset() + 2, seq);
+    }
+
+    /*
+     * Piggybacked ACK, only valid when FLAG_ACK is set
+     */
+    public int getAck() {
+        return byteBuffer.getInt(HEADER_SIZE);
     }
 
     public int getSeqno() {
@@ -115,7 +425,11 @@ public class GUDPPacket {
     }
 
     public void setType(short type) {
-        byteBuffer.putShort(2, type);
+        byteBuffer.putShort(2, (short) (getFlags() | type));
+    }
+
+    public void setFlags(short flags) {
+        byteBuffer.putShort(2, (short) (getType() | flags));
     }
 
     public void setSeqno(int length) {
@@ -123,9 +437,49 @@ public class GUDPPacket {
     }
 
     public void setPayload(byte[] pload) {
-        byteBuffer.position(HEADER_SIZE);
-        byteBuffer.put(pload, 0, pload.length);
-        payloadLength = pload.length;
+        setPayload(pload, 0, pload.length);
+    }
+
+    public void setPayload(byte[] pload, int offset, int length) {
+        byteBuffer.position(getHeaderLength());
+        byteBuffer.put(pload, offset, length);
+        payloadLength = length;
+    }
+
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    public void setSentTime(long time) {
+        sentTime = time;
+    }
+
+    public boolean getRetransmitted() {
+        return retransmitted;
+    }
+
+    public void setRetransmitted(boolean value) {
+        retransmitted = value;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long time) {
+        deadline = time;
+    }
+
+    public boolean isExpired(long now) {
+        return deadline != 0 && now - deadline > 0;
+    }
+
+    public boolean getDelivered() {
+        return delivered;
+    }
+
+    public void setDelivered(boolean value) {
+        delivered = value;
     }
 
     public void setSocketAddress(InetSocketAddress socketAddress) {
@@ -141,7 +495,15 @@ public class GUDPPacket {
     }
 
     public void getPayload(byte[] dst, int length) {
-        byteBuffer.position(HEADER_SIZE);
-        byteBuffer.get(dst, 0, length);
+        getPayload(dst, 0, length);
+    }
+
+    public void getPayload(byte[] dst, int offset, int length) {
+        if (shared != null) {
+            shared.copyTo(sharedOffset, dst, offset, length);
+            return;
+        }
+        byteBuffer.position(getHeaderLength());
+        byteBuffer.get(dst, offset, length);
     }
 }
@@ -4,15 +4,21 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 public class GUDPSocket implements GUDPSocketAPI {
 	DatagramSocket datagramSocket; // a socket for sending and receiving datagram packets
 	LinkedList<GUDPEndPoint> senderList; // list of the send queues, one element per destination (remoteEndPoint)
 	LinkedList<GUDPEndPoint> receiverList; // list of the receive queues, one element per destination (remoteEndPoint)
+	LinkedList<GUDPEndPoint> readyList; // receive queues with packets, in round-robin order (guarded by receiverList)
 	SenderThread s; // Thread sending packets from send queues to destinations
 	ReceiverThread r; // Thread receiving packets and putting them into corresponding receive queues
 	/*
@@ -33,6 +39,49 @@ public class GUDPSocket implements GUDPSocketAPI {
 	private drop senderDrop = drop.NOTHING;
 	private drop receiverDrop = drop.NOTHING;
 
+	/*
+	 * What send() does when the send queue of a remoteEndPoint is full
+	 * BLOCK: wait until ACKs free enough space
+	 * BLOCK_TIMEOUT: same as BLOCK, but give up with an IOException after sendTimeout
+	 * FAIL: throw an IOException immediately
+	 * DROP_OLDEST: discard the oldest packet not yet in the window, lowest priority first,
+	 * block if all are in flight
+	 */
+	public enum backpressure {
+		BLOCK,
+		BLOCK_TIMEOUT,
+		FAIL,
+		DROP_OLDEST,
+	}
+
+	/*
+	 * Priority classes for send(packet, prio). CONTROL is drawn into the window
+	 * before INTERACTIVE, and INTERACTIVE before BULK. send(packet) uses BULK.
+	 */
+	public enum priority {
+		CONTROL,
+		INTERACTIVE,
+		BULK,
+	}
+
+	private backpressure sendPolicy = backpressure.BLOCK;
+	private long sendTimeout = 0L;
+	private int sendQueuePackets = GUDPEndPoint.MAX_QUEUE_PACKETS;
+	private long sendQueueBytes = GUDPEndPoint.MAX_QUEUE_BYTES;
+
+	private int maxEndPoints = GUDPEndPoint.MAX_ENDPOINTS;
+	private HashMap<InetSocketAddress, Integer> weights = new HashMap<>(); // guarded by senderList
+	private HashMap<InetSocketAddress, Long> paceRates = new HashMap<>(); // guarded by senderList
+	private long paceRate = GUDPEndPoint.PACE_OFF;
+	private HashMap<InetSocketAddress, Integer> fecBlocks = new HashMap<>(); // guarded by senderList
+	private int fecBlock = GUDPEndPoint.FEC_OFF;
+	private boolean pathMTUDiscovery = false;
+	private int probeCeiling = GUDPEndPoint.MAX_PROBE_LEN;
+	private long maxMessage = GUDPEndPoint.MAX_MESSAGE_LEN;
+
+	private boolean persistentSession = false; // keep remoteEndPoints across finish()
+	private boolean dataOnBSN = false; // carry the first payload of a session in the BSN
+
 	public GUDPSocket(DatagramSocket socket) {
 		datagramSocket = socket;
 		/*
@@ -42,9 +91,10 @@ public class GUDPSocket implements GUDPSocketAPI {
 		 */
 		this.senderList = new LinkedList<GUDPEndPoint>();
 		this.receiverList = new LinkedList<GUDPEndPoint>();
+		this.readyList = new LinkedList<GUDPEndPoint>();
 		this.s = new SenderThread(socket, senderList, senderDrop);
 		this.s.setName("SenderThread");
-		this.r = new ReceiverThread(socket, receiverList, s, senderList, senderDrop, receiverDrop);
+		this.r = new ReceiverThread(socket, receiverList, readyList, s, senderList, senderDrop, receiverDrop);
 		this.r.setName("ReceiverThread");
 		this.s.start();
 		System.out.println("SenderThread started");
@@ -74,65 +124,511 @@ public class GUDPSocket implements GUDPSocketAPI {
 		 * https://www.baeldung.com/java-wait-notify
 		 * https://www.baeldung.com/java-producer-consumer-problem
 		 */
-		GUDPEndPoint endPoint = null;
-		for (GUDPEndPoint ep : senderList) {
-			InetSocketAddress remoteEndPoint = ep.getRemoteEndPoint();
-			if (remoteEndPoint.getAddress().equals(packet.getAddress()) &&
-					remoteEndPoint.getPort() == packet.getPort()) {
-				endPoint = ep;
-				break;
+		send(packet, priority.BULK, 0);
+	}
+
+	/*
+	 * Send a packet with the given priority class. Higher classes enter the
+	 * window first; packets of the same class keep their order.
+	 */
+	public void send(DatagramPacket packet, priority prio) throws IOException {
+		send(packet, prio, 0);
+	}
+
+	/*
+	 * Send a packet that is worthless after ttl milliseconds (0 for no deadline).
+	 * Once the deadline has passed, the packet is no longer sent or retransmitted,
+	 * and the receiver skips it. Delivery of the remaining packets stays in order.
+	 */
+	public void send(DatagramPacket packet, priority prio, long ttl) throws IOException {
+		send(packet, 0, prio, ttl);
+	}
+
+	/*
+	 * Send a packet on one of the logical streams 1 to GUDPPacket.MAX_STREAM.
+	 * Each stream is delivered in order, but a loss in one stream does not
+	 * hold up the others. All streams to a remoteEndPoint share its window.
+	 */
+	public void send(DatagramPacket packet, int stream) throws IOException {
+		send(packet, stream, priority.BULK, 0);
+	}
+
+	public void send(DatagramPacket packet, int stream, priority prio, long ttl) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+		send((InetSocketAddress) packet.getSocketAddress(), new ByteBuffer[] { data }, stream, prio, ttl);
+	}
+
+	/*
+	 * Send one message to dest made of the remaining bytes of data, in order.
+	 * The buffers may be direct or memory-mapped: their bytes are copied once,
+	 * straight into GUDP packets, and their positions are left unchanged.
+	 */
+	public void send(InetSocketAddress dest, ByteBuffer... data) throws IOException {
+		send(dest, data, 0, priority.BULK, 0);
+	}
+
+	public void send(InetSocketAddress dest, int stream, ByteBuffer... data) throws IOException {
+		send(dest, data, stream, priority.BULK, 0);
+	}
+
+	public void send(InetSocketAddress dest, ByteBuffer[] data, int stream, priority prio, long ttl)
+			throws IOException {
+		queueMessage(dest, data, null, stream, prio, deadline(ttl));
+	}
+
+	/*
+	 * Fan-out: send the same message to every destination in dests. The
+	 * payload is not copied per destination: the packets queued for each of
+	 * them refer to it until they are ACKed, and it is only copied into the
+	 * datagram when a packet is transmitted. The caller still holds its own
+	 * reference to payload and gives it up with payload.release().
+	 */
+	public void send(List<InetSocketAddress> dests, SharedPayload payload) throws IOException {
+		send(dests, payload, 0, priority.BULK, 0);
+	}
+
+	public void send(List<InetSocketAddress> dests, SharedPayload payload, int stream, priority prio, long ttl)
+			throws IOException {
+		long deadline = deadline(ttl);
+		for (InetSocketAddress dest : dests) {
+			queueMessage(dest, null, payload, stream, prio, deadline);
+		}
+	}
+
+	/*
+	 * The System.nanoTime() after which a message sent now with ttl
+	 * milliseconds is abandoned, 0 for none. All fragments of a message share it.
+	 */
+	private static long deadline(long ttl) {
+		return ttl > 0 ? System.nanoTime() + ttl * 1000000L : 0L;
+	}
+
+	/*
+	 * Queue one message to dest, either the bytes in data or a shared payload
+	 */
+	private void queueMessage(InetSocketAddress dest, ByteBuffer[] data, SharedPayload shared, int stream,
+			priority prio, long deadline) throws IOException {
+		if (stream < 0 || stream > GUDPPacket.MAX_STREAM) {
+			throw new IllegalArgumentException("Stream must be 0 to " + GUDPPacket.MAX_STREAM);
+		}
+		int length = 0;
+		if (shared != null) {
+			length = shared.length();
+			data = shared.getBuffers(); // only copied if the message rides with the BSN
+		} else {
+			for (ByteBuffer buffer : data) {
+				length += buffer.remaining();
 			}
 		}
-		GUDPPacket gudppacket;
-		if (endPoint == null) {
-			endPoint = new GUDPEndPoint(packet.getAddress(), packet.getPort());
-			synchronized (senderList) {
-				senderList.add(endPoint);
-				ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
-				buffer.order(ByteOrder.BIG_ENDIAN);
-				gudppacket = new GUDPPacket(buffer);
-				gudppacket.setType(GUDPPacket.TYPE_BSN);
-				gudppacket.setVersion(GUDPPacket.GUDP_VERSION);
-				gudppacket.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
-				gudppacket.setPayloadLength(0);
-				Random random = new Random();
-				int rand = random.nextInt(Short.MAX_VALUE);
-				gudppacket.setSeqno(rand);
-				endPoint.setNextseqnum(rand);
-				endPoint.setBase(rand);
-				endPoint.setLast(rand);
-				endPoint.add(gudppacket);
-				senderList.notify();
-			}
-		} else if (endPoint.getFinished()) {
-			synchronized (senderList) {
+		if (length > maxMessage) {
+			// the receiver would drop it after ACKing every fragment
+			throw new IOException("Message too large: " + length + " bytes, at most " + maxMessage);
+		}
+		GUDPEndPoint endPoint;
+		synchronized (senderList) {
+			endPoint = s.getEndPoint(dest);
+			boolean dataQueued = false;
+			if (endPoint == null) {
+				if (!s.makeRoom(maxEndPoints)) {
+					throw new IOException("Too many remoteEndPoints with packets in flight");
+				}
+				endPoint = new GUDPEndPoint(dest.getAddress(), dest.getPort());
+				endPoint.setMaxQueuePackets(sendQueuePackets);
+				endPoint.setMaxQueueBytes(sendQueueBytes);
+				endPoint.setPersistent(persistentSession);
+				endPoint.setWeight(weights.getOrDefault(endPoint.getRemoteEndPoint(), 1));
+				endPoint.setPaceRate(paceRates.getOrDefault(endPoint.getRemoteEndPoint(), paceRate));
+				endPoint.setFecBlock(fecBlocks.getOrDefault(endPoint.getRemoteEndPoint(), fecBlock));
+				endPoint.setPathMTUDiscovery(pathMTUDiscovery);
+				endPoint.setProbeCeiling(probeCeiling);
+				s.addEndPoint(endPoint);
+				dataQueued = queueBSN(endPoint, dest, data, length, stream);
+			} else if (endPoint.getFinished()) {
 				endPoint.setFinished(false);
-				ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
-				buffer.order(ByteOrder.BIG_ENDIAN);
-				gudppacket = new GUDPPacket(buffer);
-				gudppacket.setType(GUDPPacket.TYPE_BSN);
-				gudppacket.setVersion(GUDPPacket.GUDP_VERSION);
-				gudppacket.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
-				gudppacket.setPayloadLength(0);
-				Random random = new Random();
-				int rand = random.nextInt(Short.MAX_VALUE);
-				gudppacket.setSeqno(rand);
-				endPoint.setNextseqnum(rand);
-				endPoint.setBase(rand);
-				endPoint.setLast(rand);
-				endPoint.add(gudppacket);
-				senderList.notify();
+				if (!endPoint.getPersistent()) {
+					dataQueued = queueBSN(endPoint, dest, data, length, stream);
+				}
+				// else: persistent session, continue in the same sequence space
+			}
+			endPoint.touch();
+			if (!dataQueued) {
+				// the fragments are admitted together, so they stay contiguous in their class
+				int segment = endPoint.getMaxSegment();
+				waitForQueueSpace(endPoint, Math.max(1, (length + segment - 1) / segment), length);
+				// a message larger than one packet is split here and reassembled before receive()
+				ArrayList<GUDPPacket> fragments;
+				if (shared != null) {
+					fragments = GUDPPacket.share(shared, dest, segment, stream);
+				} else {
+					fragments = GUDPPacket.fragment(data, dest, segment, stream);
+				}
+				for (GUDPPacket gudppacket : fragments) {
+					gudppacket.setDeadline(deadline);
+					endPoint.enqueue(gudppacket, prio);
+				}
+			}
+			senderList.notifyAll();
+		}
+	}
+
+	/*
+	 * Start a new session by putting a BSN with a random sequence number in the
+	 * queue of endPoint. If dataOnBSN is set, the payload in data rides with
+	 * the BSN and true is returned, so that the caller does not queue it again.
+	 * A payload that needs fragmenting, or is on a stream, never rides with
+	 * the BSN. A payload that does is subject to the backpressure policy.
+	 * Must be called with senderList locked.
+	 */
+	private boolean queueBSN(GUDPEndPoint endPoint, InetSocketAddress dest, ByteBuffer[] data, int length,
+			int stream) throws IOException {
+		GUDPPacket gudppacket;
+		boolean carry = dataOnBSN && length <= GUDPPacket.MAX_DATA_LEN && stream == 0;
+		if (carry) {
+			// the payload counts against the send queue like any other DATA
+			waitForQueueSpace(endPoint, 1, length);
+			gudppacket = GUDPPacket.fragment(data, dest, GUDPPacket.MAX_DATA_LEN, 0).get(0);
+			gudppacket.setType(GUDPPacket.TYPE_BSN);
+		} else {
+			ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			gudppacket = new GUDPPacket(buffer);
+			gudppacket.setType(GUDPPacket.TYPE_BSN);
+			gudppacket.setVersion(GUDPPacket.GUDP_VERSION);
+			gudppacket.setSocketAddress(dest);
+			gudppacket.setPayloadLength(0);
+		}
+		// any 16-bit start: seqLT() handles the wrap past Integer.MAX_VALUE
+		Random random = new Random();
+		int rand = random.nextInt(1 << 16);
+		gudppacket.setSeqno(rand);
+		endPoint.setNextseqnum(rand);
+		endPoint.setBase(rand);
+		endPoint.setLast(rand);
+		endPoint.add(gudppacket);
+		return carry;
+	}
+
+	/*
+	 * Apply the backpressure policy when the send queue of endPoint is full.
+	 * Must be called with senderList locked. Waiting releases the lock, and the
+	 * ReceiverThread notifies senderList whenever an ACK frees queue space.
+	 */
+	private void waitForQueueSpace(GUDPEndPoint endPoint, int packets, int length) throws IOException {
+		if (!endPoint.isFullQueue(packets, length)) {
+			return;
+		}
+		switch (sendPolicy) {
+			case FAIL:
+				throw new IOException("Send queue full: " + endPoint.getRemoteEndPoint());
+			case DROP_OLDEST:
+				while (endPoint.isFullQueue(packets, length) && endPoint.dropOldest()) {
+					if (debug) {
+						System.err.println("SEND QUEUE FULL: DROP OLDEST " + endPoint.getRemoteEndPoint());
+					}
+				}
+				break;
+			case BLOCK:
+			case BLOCK_TIMEOUT:
+				break;
+		}
+		long deadline = System.currentTimeMillis() + sendTimeout;
+		while (endPoint.isFullQueue(packets, length)) {
+			if (!s.isAlive()) {
+				throw new IOException("SenderThread terminated");
+			}
+			// wake up regularly to notice a SenderThread that gave up
+			long wait = 200;
+			if (sendPolicy == backpressure.BLOCK_TIMEOUT) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException("Send queue full: timed out " + endPoint.getRemoteEndPoint());
+				}
+				wait = Math.min(wait, remaining);
+			}
+			try {
+				senderList.wait(wait);
+			} catch (InterruptedException e) {
+				throw new IOException("Send thread interrupted");
+			}
+		}
+	}
+
+	/*
+	 * Limit the send queue of every remoteEndPoint created from now on.
+	 * Zero means unbounded.
+	 */
+	public void setSendQueueLimit(int packets, long bytes) {
+		this.sendQueuePackets = packets;
+		this.sendQueueBytes = bytes;
+	}
+
+	/*
+	 * Choose how SenderThread shares transmit opportunities between
+	 * remoteEndPoints: new FIFOScheduler() (the default), or new DRRScheduler()
+	 * for weighted fairness
+	 */
+	public void setScheduler(TransmitScheduler scheduler) {
+		synchronized (senderList) {
+			s.setScheduler(scheduler);
+		}
+	}
+
+	/*
+	 * Relative share of transmit opportunities for dest under a weighted
+	 * scheduler (default 1). Also applies to a later session to dest.
+	 */
+	public void setWeight(InetSocketAddress dest, int weight) {
+		if (weight < 1) {
+			// a weight of 0 would never earn credit, and finish() would wait forever
+			throw new IllegalArgumentException("Weight must be at least 1");
+		}
+		synchronized (senderList) {
+			weights.put(dest, weight);
+			for (GUDPEndPoint endPoint : senderList) {
+				if (endPoint.getRemoteEndPoint().equals(dest)) {
+					endPoint.setWeight(weight);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Pace packets to every destination: rate in bytes per second,
+	 * GUDPEndPoint.PACE_RTT to spread each window over one measured RTT, or
+	 * GUDPEndPoint.PACE_OFF to send the window back-to-back
+	 */
+	public void setPacing(long rate) {
+		synchronized (senderList) {
+			paceRate = rate;
+			for (GUDPEndPoint endPoint : senderList) {
+				if (!paceRates.containsKey(endPoint.getRemoteEndPoint())) {
+					endPoint.setPaceRate(rate);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Pace packets to dest only, overriding setPacing(rate)
+	 */
+	public void setPacing(InetSocketAddress dest, long rate) {
+		synchronized (senderList) {
+			paceRates.put(dest, rate);
+			for (GUDPEndPoint endPoint : senderList) {
+				if (endPoint.getRemoteEndPoint().equals(dest)) {
+					endPoint.setPaceRate(rate);
+				}
 			}
 		}
+	}
+
+	/*
+	 * Forward error correction: send one XOR parity packet after every block
+	 * of packets DATA packets, so the receiver can rebuild a single lost
+	 * packet without waiting for a timeout. The overhead is one packet per
+	 * block. GUDPEndPoint.FEC_OFF turns it off.
+	 */
+	public void setFEC(int packets) {
+		checkFecBlock(packets);
 		synchronized (senderList) {
-			gudppacket = GUDPPacket.encapsulate(packet);
-			gudppacket.setSeqno(endPoint.getLast() + 1);
-			endPoint.setLast(endPoint.getLast() + 1);
-			endPoint.add(gudppacket);
-			senderList.notify();
+			fecBlock = packets;
+			for (GUDPEndPoint endPoint : senderList) {
+				if (!fecBlocks.containsKey(endPoint.getRemoteEndPoint())) {
+					endPoint.setFecBlock(packets);
+				}
+			}
 		}
 	}
 
+	/*
+	 * FEC block size for dest only, overriding setFEC(packets)
+	 */
+	public void setFEC(InetSocketAddress dest, int packets) {
+		checkFecBlock(packets);
+		synchronized (senderList) {
+			fecBlocks.put(dest, packets);
+			for (GUDPEndPoint endPoint : senderList) {
+				if (endPoint.getRemoteEndPoint().equals(dest)) {
+					endPoint.setFecBlock(packets);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Probe each destination for the largest datagram its path carries and
+	 * raise the DATA payload size beyond MAX_DATA_LEN to match. If large
+	 * packets stop getting through, new packets fall back to MAX_DATA_LEN.
+	 *
+	 * A DatagramSocket cannot set Don't Fragment, so a probe larger than the
+	 * path MTU is fragmented by IP and still arrives. The search therefore
+	 * stops at GUDPEndPoint.MAX_PROBE_LEN, which fits a 1500-byte Ethernet
+	 * frame. On a path known to carry larger frames, such as jumbo frames
+	 * end to end, setPathMTUDiscovery(true, ceiling) raises the limit.
+	 */
+	public void setPathMTUDiscovery(boolean value) {
+		synchronized (senderList) {
+			pathMTUDiscovery = value;
+			for (GUDPEndPoint endPoint : senderList) {
+				endPoint.setPathMTUDiscovery(value);
+			}
+		}
+	}
+
+	/*
+	 * Same as setPathMTUDiscovery(value), probing datagrams up to ceiling
+	 * bytes. Applies to remoteEndPoints created from now on.
+	 */
+	public void setPathMTUDiscovery(boolean value, int ceiling) {
+		if (ceiling < GUDPPacket.MAX_DATAGRAM_LEN || ceiling > GUDPPacket.MAX_UDP_LEN) {
+			throw new IllegalArgumentException(
+					"Probe ceiling must be " + GUDPPacket.MAX_DATAGRAM_LEN + " to " + GUDPPacket.MAX_UDP_LEN);
+		}
+		synchronized (senderList) {
+			probeCeiling = ceiling;
+		}
+		setPathMTUDiscovery(value);
+	}
+
+	/*
+	 * Payload bytes per DATA packet to dest: MAX_DATA_LEN, or more once path
+	 * MTU discovery has found a larger path MTU. Messages up to this size
+	 * are sent without fragmenting.
+	 */
+	public int getMaxSegment(InetSocketAddress dest) {
+		synchronized (senderList) {
+			for (GUDPEndPoint endPoint : senderList) {
+				if (endPoint.getRemoteEndPoint().equals(dest)) {
+					return endPoint.getMaxSegment();
+				}
+			}
+			return GUDPPacket.MAX_DATA_LEN;
+		}
+	}
+
+	private void checkFecBlock(int packets) {
+		if (packets < 0 || packets > GUDPEndPoint.MAX_FEC_BLOCK) {
+			throw new IllegalArgumentException("FEC block size must be 0 to " + GUDPEndPoint.MAX_FEC_BLOCK);
+		}
+	}
+
+	/*
+	 * Bound senderList and receiverList to max remoteEndPoints each. Receive end
+	 * points idle for idleTimeout are evicted, and the least recently active one
+	 * makes room for a new peer when the list is full. End points with data
+	 * the application has not received yet, persistent sessions, and send
+	 * sessions that are not finished, are never evicted that way: a new peer
+	 * is refused instead. Idle
+	 * persistent send sessions are dropped after idleTimeout / 2, before the
+	 * peer evicts them.
+	 */
+	public void setEndPointLimit(int max, long idleTimeout) {
+		this.maxEndPoints = max;
+		s.setIdleTimeout(idleTimeout);
+		r.setEndPointLimit(max, idleTimeout);
+	}
+
+	public long getSenderEvictions() {
+		synchronized (senderList) {
+			return s.getEvictions();
+		}
+	}
+
+	public long getReceiverEvictions() {
+		return r.getEvictions();
+	}
+
+	/*
+	 * Bytes of packet data held in all send and receive queues
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		synchronized (senderList) {
+			for (GUDPEndPoint endPoint : senderList) {
+				usage += endPoint.getMemoryUsage();
+			}
+		}
+		synchronized (receiverList) {
+			for (GUDPEndPoint endPoint : receiverList) {
+				usage += endPoint.getMemoryUsage();
+			}
+		}
+		return usage;
+	}
+
+	/*
+	 * Number of out-of-order packets each receive end point holds until the gap
+	 * is filled. Zero gives plain GBN behaviour (drop everything out of order).
+	 */
+	public void setReceiveHoldLimit(int packets) {
+		r.setHoldLimit(packets);
+	}
+
+	/*
+	 * Largest message, in bytes, that each receive end point reassembles from
+	 * fragments, and that send() accepts. Larger messages are dropped as their
+	 * fragments arrive, so both peers should use the same limit.
+	 */
+	public void setMaxMessageSize(long bytes) {
+		this.maxMessage = bytes;
+		r.setMaxMessage(bytes);
+	}
+
+	/*
+	 * Bytes of incomplete messages that each receive end point holds, over
+	 * all its streams. When a new fragment would go beyond this, the
+	 * message that began first is dropped. Applies to remoteEndPoints
+	 * created from now on.
+	 */
+	public void setReassemblyLimit(long bytes) {
+		r.setMaxFragmentBytes(bytes);
+	}
+
+	/*
+	 * In a persistent session, a remoteEndPoint is kept after finish() together
+	 * with its sequence space, window and timer settings. The next send()
+	 * continues right after the FIN instead of starting over with a new BSN.
+	 * Applies to remoteEndPoints created from now on.
+	 */
+	public void setPersistentSession(boolean value) {
+		this.persistentSession = value;
+	}
+
+	/*
+	 * Let the first payload of a session ride with the BSN, saving one round
+	 * trip. Only enable this when the receiver also runs this implementation.
+	 */
+	public void setDataOnBSN(boolean value) {
+		this.dataOnBSN = value;
+	}
+
+	/*
+	 * Carry ACKs inside DATA headers when there is reverse traffic to the same
+	 * peer. An ACK that found no DATA to ride on is sent alone after delay ms.
+	 */
+	public void setPiggybackACK(boolean value, long delay) {
+		r.setPiggybackACK(value, delay);
+	}
+
+	/*
+	 * Turn the diagnostics on System.err on or off, such as every packet
+	 * dropped from a full send queue under DROP_OLDEST. On by default.
+	 */
+	public void setDebug(boolean value) {
+		this.debug = value;
+		s.setDebug(value);
+		r.setDebug(value);
+	}
+
+	public void setSendPolicy(backpressure policy) {
+		this.sendPolicy = policy;
+	}
+
+	public void setSendPolicy(backpressure policy, long timeout) {
+		this.sendPolicy = policy;
+		this.sendTimeout = timeout;
+	}
+
 	public void receive(DatagramPacket packet) throws IOException {
 		/*
 		 * iterate through the receiverList to fetch a packet from exsiting
@@ -146,16 +642,104 @@ public class GUDPSocket implements GUDPSocketAPI {
 		 * Multiple threads may update receiverList, thus you should synchronize it to
 		 * avoid race conditions.
 		 */
+		receiveStream(packet);
+	}
+
+	/*
+	 * Same as receive(packet), and return the stream the message came on
+	 */
+	public int receiveStream(DatagramPacket packet) throws IOException {
 		synchronized (receiverList) {
 			while (true) {
-				for (GUDPEndPoint endPoint : receiverList) {
+				/*
+				 * Serve ready end points round-robin: take one packet from the head
+				 * of readyList and move the end point to the tail if it has more.
+				 */
+				GUDPEndPoint endPoint;
+				while ((endPoint = readyList.poll()) != null) {
+					endPoint.setReady(false);
 					if (!endPoint.isEmptyQueue()) {
-						GUDPPacket gudppacket = endPoint.remove();
-						gudppacket.decapsulate(packet);
+						int stream = decapsulateMessage(endPoint, packet, -1);
+						if (!endPoint.isEmptyQueue()) {
+							endPoint.setReady(true);
+							readyList.add(endPoint);
+						}
+						return stream;
+					}
+				}
+
+				try {
+					receiverList.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Receive thread interrupted");
+				}
+			}
+		}
+	}
+
+	/*
+	 * Receive the next message on one stream, from any remoteEndPoint, waiting
+	 * until there is one. Messages on other streams stay queued.
+	 */
+	public void receive(int stream, DatagramPacket packet) throws IOException {
+		receive(stream, packet, 0L);
+	}
+
+	/*
+	 * Same as receive(stream, packet), but wait at most timeout ms (0 for no
+	 * limit), then throw SocketTimeoutException, as DatagramSocket does
+	 */
+	public void receive(int stream, DatagramPacket packet, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (receiverList) {
+			while (true) {
+				Iterator<GUDPEndPoint> iter = readyList.iterator();
+				while (iter.hasNext()) {
+					GUDPEndPoint endPoint = iter.next();
+					if (decapsulateMessage(endPoint, packet, stream) >= 0) {
+						iter.remove();
+						if (endPoint.isEmptyQueue()) {
+							endPoint.setReady(false);
+						} else {
+							readyList.add(endPoint);
+						}
 						return;
 					}
 				}
 
+				long left = 0L;
+				if (timeout > 0) {
+					left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						throw new SocketTimeoutException("No message on stream " + stream + " within " + timeout + " ms");
+					}
+				}
+				try {
+					receiverList.wait(left);
+				} catch (InterruptedException e) {
+					throw new IOException("Receive thread interrupted");
+				}
+			}
+		}
+	}
+
+	/*
+	 * Receive the next packet from one particular remoteEndPoint, waiting until
+	 * it has sent one. Packets from other remoteEndPoints stay queued.
+	 */
+	public void receive(InetSocketAddress from, DatagramPacket packet) throws IOException {
+		synchronized (receiverList) {
+			while (true) {
+				GUDPEndPoint endPoint = r.getEndPoint(from);
+				if (endPoint != null && !endPoint.isEmptyQueue()) {
+					decapsulateMessage(endPoint, packet, -1);
+					if (endPoint.isEmptyQueue() && endPoint.getReady()) {
+						readyList.remove(endPoint);
+						endPoint.setReady(false);
+					}
+					return;
+				}
+
 				try {
 					receiverList.wait();
 				} catch (InterruptedException e) {
@@ -165,6 +749,25 @@ public class GUDPSocket implements GUDPSocketAPI {
 		}
 	}
 
+	/*
+	 * Take the next message on stream (any stream if negative) from the
+	 * receive queue of endPoint and copy its fragments one after the other
+	 * into packet. The receive queue only holds complete messages. Return the
+	 * stream of the message, or -1 if there is none.
+	 * Must be called with receiverList locked.
+	 */
+	private int decapsulateMessage(GUDPEndPoint endPoint, DatagramPacket packet, int stream) throws IOException {
+		ArrayList<GUDPPacket> message = endPoint.removeMessage(stream);
+		if (message == null) {
+			return -1;
+		}
+		int length = 0;
+		for (GUDPPacket gudppacket : message) {
+			length = gudppacket.decapsulate(packet, length);
+		}
+		return message.get(0).getStream();
+	}
+
 	public void finish() throws IOException {
 		/*
 		 * Create a FIN packet for every remoteEndPoint
@@ -183,17 +786,7 @@ public class GUDPSocket implements GUDPSocketAPI {
 		synchronized (senderList) {
 			for (GUDPEndPoint gudpEndPoint : senderList) {
 				if (!gudpEndPoint.getFinished()) {
-					ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
-					buffer.order(ByteOrder.BIG_ENDIAN);
-					GUDPPacket gudpPacket = new GUDPPacket(buffer);
-					gudpPacket.setVersion(GUDPPacket.GUDP_VERSION);
-					gudpPacket.setType(GUDPPacket.TYPE_FIN);
-					gudpPacket.setSocketAddress(gudpEndPoint.getRemoteEndPoint());
-					gudpPacket.setPayloadLength(0);
-					int seqNumber = (gudpEndPoint.getLast() + 1);
-					gudpPacket.setSeqno(seqNumber);
-					gudpEndPoint.setLast(gudpEndPoint.getLast() + 1);
-					gudpEndPoint.add(gudpPacket);
+					queueFIN(gudpEndPoint);
 				}
 			}
 			senderList.notifyAll();
@@ -202,7 +795,7 @@ public class GUDPSocket implements GUDPSocketAPI {
 			synchronized (senderList) {
 				boolean allPacketsSent = true;
 				for (GUDPEndPoint gudpEndPoint : senderList) {
-					if (!gudpEndPoint.isEmptyQueue() || gudpEndPoint.getBase() < gudpEndPoint.getLast()) {
+					if (!gudpEndPoint.isEmptyQueue() || GUDPPacket.seqLT(gudpEndPoint.getBase(), gudpEndPoint.getLast())) {
 						allPacketsSent = false;
 						break;
 					}
@@ -229,6 +822,44 @@ public class GUDPSocket implements GUDPSocketAPI {
 		}
 	}
 
+	/*
+	 * Close the session to dest without waiting, e.g. after a reply to a
+	 * peer that is sending to us. The FIN goes after what is queued, and the
+	 * end point is let go once everything is ACKed, so that it does not
+	 * count against setEndPointLimit(). A later send() to dest starts a new
+	 * session.
+	 */
+	public void finish(InetSocketAddress dest) {
+		synchronized (senderList) {
+			GUDPEndPoint endPoint = s.getEndPoint(dest);
+			if (endPoint != null && !endPoint.getFinished()) {
+				queueFIN(endPoint);
+				endPoint.setFinished(true);
+				senderList.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Put a FIN in the queue of endPoint, after every pending packet.
+	 * Must be called with senderList locked.
+	 */
+	private void queueFIN(GUDPEndPoint endPoint) {
+		ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		GUDPPacket gudpPacket = new GUDPPacket(buffer);
+		gudpPacket.setVersion(GUDPPacket.GUDP_VERSION);
+		gudpPacket.setType(GUDPPacket.TYPE_FIN);
+		if (endPoint.getPersistent()) {
+			// the receiver must not evict a session that may continue
+			gudpPacket.setFlags(GUDPPacket.FLAG_KEEP);
+		}
+		gudpPacket.setSocketAddress(endPoint.getRemoteEndPoint());
+		gudpPacket.setPayloadLength(0);
+		// the FIN gets its seqno after every pending packet
+		endPoint.enqueueLast(gudpPacket);
+	}
+
 	public void close() throws IOException {
 		/*
 		 * terminate GUDP gracefully by stopping sender and receiver threads and close
@@ -236,6 +867,10 @@ public class GUDPSocket implements GUDPSocketAPI {
 		 */
 		synchronized (senderList) {
 			s.stopSenderThread();
+			// let go of the shared payloads of whatever was still queued
+			for (GUDPEndPoint endPoint : senderList) {
+				endPoint.clear();
+			}
 			senderList.notifyAll();
 		}
 		synchronized (receiverList) {
@@ -3,11 +3,15 @@ package ik2215.gudp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /*
  * ReceiverThread is a non-static nested class (inner class)
@@ -16,25 +20,99 @@ import java.util.LinkedList;
 public class ReceiverThread extends Thread {
 	private final DatagramSocket sock;
 	private final LinkedList<GUDPEndPoint> receiverList;
+	private final HashMap<InetSocketAddress, GUDPEndPoint> receiverIndex = new HashMap<>(); // guarded by receiverList
 	private final SenderThread s;
 	private final LinkedList<GUDPEndPoint> senderList;
+	private final LinkedList<GUDPEndPoint> readyList; // end points with packets for the application
 	private boolean runFlag = true;
 	private boolean debug = true;
 	private GUDPSocket.drop senderDrop;
 	private GUDPSocket.drop receiverDrop;
+	private static final long SWEEP_INTERVAL = 1000L; // ms between idle sweeps
+	/* Piggybacked ACKs: defer the ACK of DATA while DATA is queued towards the same peer */
+	private boolean piggyback = false;
+	private long ackDelay = 0L; // fall back to a standalone ACK after this delay
+	private Timer ackTimer;
+	/* Bounded receiverList with idle and LRU eviction */
+	private int maxEndPoints = GUDPEndPoint.MAX_ENDPOINTS;
+	private long idleTimeout = GUDPEndPoint.IDLE_TIMEOUT;
+	private final Timer sweepTimer = new Timer("Sweep Timer", true);
+	private long evictions = 0;
+	private int maxHold = GUDPEndPoint.MAX_HOLD_PACKETS;
+	private long maxMessage = GUDPEndPoint.MAX_MESSAGE_LEN;
+	private long maxFragmentBytes = GUDPEndPoint.MAX_FRAGMENT_BYTES;
+	private final byte[] buf = new byte[GUDPPacket.MAX_UDP_LEN];
 
-	public ReceiverThread(DatagramSocket sock, LinkedList<GUDPEndPoint> receiverList, SenderThread s,
-			LinkedList<GUDPEndPoint> senderList, GUDPSocket.drop senderDrop, GUDPSocket.drop receiverDrop) {
+	public ReceiverThread(DatagramSocket sock, LinkedList<GUDPEndPoint> receiverList, LinkedList<GUDPEndPoint> readyList,
+			SenderThread s, LinkedList<GUDPEndPoint> senderList, GUDPSocket.drop senderDrop, GUDPSocket.drop receiverDrop) {
 		this.sock = sock;
 		this.receiverList = receiverList;
+		this.readyList = readyList;
 		this.s = s;
 		this.senderList = senderList;
 		this.senderDrop = senderDrop;
 		this.receiverDrop = receiverDrop;
+		// idle end points are evicted even when no packets arrive
+		sweepTimer.schedule(new TimerTask() {
+			public void run() {
+				sweepIdle();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL);
 	}
 
 	public void stopReceiverThread() {
 		this.runFlag = false;
+		sweepTimer.cancel();
+		synchronized (receiverList) {
+			if (ackTimer != null) {
+				ackTimer.cancel();
+			}
+		}
+	}
+
+	public void setDebug(boolean value) {
+		this.debug = value;
+	}
+
+	public void setEndPointLimit(int max, long timeout) {
+		synchronized (receiverList) {
+			this.maxEndPoints = max;
+			this.idleTimeout = timeout;
+		}
+	}
+
+	public long getEvictions() {
+		synchronized (receiverList) {
+			return this.evictions;
+		}
+	}
+
+	public void setHoldLimit(int packets) {
+		synchronized (receiverList) {
+			this.maxHold = packets;
+		}
+	}
+
+	public void setMaxMessage(long bytes) {
+		synchronized (receiverList) {
+			this.maxMessage = bytes;
+		}
+	}
+
+	public void setMaxFragmentBytes(long bytes) {
+		synchronized (receiverList) {
+			this.maxFragmentBytes = bytes;
+		}
+	}
+
+	public void setPiggybackACK(boolean value, long delay) {
+		synchronized (receiverList) {
+			this.piggyback = value;
+			this.ackDelay = delay;
+			if (piggyback && ackTimer == null) {
+				ackTimer = new Timer("ACK Timer", true);
+			}
+		}
 	}
 
 	@Override
@@ -69,7 +147,7 @@ public class ReceiverThread extends Thread {
 			 * on the Window size.
 			 * Otherwise, you can silently ignore the DATA packet without sending an ACK.
 			 */
-			byte[] buf = new byte[GUDPPacket.MAX_DATAGRAM_LEN];
+			// one buffer for the largest datagram, each packet keeps a copy of its exact size
 			DatagramPacket udppacket = new DatagramPacket(buf, buf.length);
 			try {
 				this.sock.receive(udppacket);
@@ -77,6 +155,7 @@ public class ReceiverThread extends Thread {
 				System.err.println("ReceiverThread IOException: probably because of socket closed");
 				break;
 			}
+			udppacket.setData(Arrays.copyOf(buf, udppacket.getLength()));
 
 			try {
 				GUDPPacket gudppacket = GUDPPacket.unpack(udppacket);
@@ -100,6 +179,12 @@ public class ReceiverThread extends Thread {
 							case GUDPPacket.TYPE_FIN:
 								System.out.println("\t RCV FIN\t" + String.valueOf(gudppacket.getSeqno()) + "\tDROP!");
 								break;
+							case GUDPPacket.TYPE_FWD:
+								System.out.println("\t RCV FWD\t" + String.valueOf(gudppacket.getSeqno()) + "\tDROP!");
+								break;
+							case GUDPPacket.TYPE_FEC:
+								System.out.println("\t RCV FEC\t" + String.valueOf(gudppacket.getSeqno()) + "\tDROP!");
+								break;
 						}
 						continue;
 					}
@@ -109,52 +194,7 @@ public class ReceiverThread extends Thread {
 				switch (gudppacket.getType()) {
 					case GUDPPacket.TYPE_ACK:
 						// ACK receives only as a response to GBN sender in senderList
-						synchronized (senderList) {
-							endPoint = getEndPoint(senderList, sock.getAddress(), sock.getPort());
-							if (endPoint != null) {
-								boolean sendReceiveACK = true;
-								switch (senderDrop) {
-									case NOTHING:
-									case FIRST_BSN:
-									case FIRST_DATA:
-									case FIRST_FIN:
-										break;
-									case FIRST_ACK:
-										// drop ACK for the first packet arrived at the sender
-										if (!endPoint.getDropSend()) {
-											sendReceiveACK = false;
-											endPoint.setDropSend(true);
-										}
-										break;
-									case RANDOM:
-										if (Math.random() <= endPoint.getChance()) {
-											sendReceiveACK = false;
-										}
-										break;
-									case ALL:
-										sendReceiveACK = false;
-										break;
-								}
-
-								if ((sendReceiveACK) && (endPoint.getBase() <= gudppacket.getSeqno())
-										&& (gudppacket.getSeqno() - 1 <= endPoint.getLast())) {
-									if (debug) {
-										System.err.println("\t RCV ACK\t" + (gudppacket.getSeqno()));
-									}
-									endPoint.removeAllACK(gudppacket.getSeqno() - 1);
-									endPoint.setBase(gudppacket.getSeqno());
-									endPoint.setState(GUDPEndPoint.endPointState.RCV);
-									s.FSMSender(endPoint);
-									senderList.notify();
-								} else {
-									System.err.println("\t RCV ACK\t" + (gudppacket.getSeqno()) + "\tDROP!");
-								}
-							} else {
-								// no remoteEndPoint: do nothing
-								System.err.println(
-										"\t RCV ACK\t" + (gudppacket.getSeqno()) + "\tNO MATCHING END POINT. DROP!");
-							}
-						} /* synchronized (senderList) */
+						processACK(sock, gudppacket.getSeqno());
 						break;
 
 					case GUDPPacket.TYPE_BSN:
@@ -162,15 +202,29 @@ public class ReceiverThread extends Thread {
 						// Add it to receiverList if it is really a new remoteEndPoint
 						// Otherwise, ignore the BSN packet
 						synchronized (receiverList) {
-							endPoint = getEndPoint(receiverList, sock.getAddress(), sock.getPort());
+							endPoint = getEndPoint(sock);
+							if (endPoint != null) {
+								endPoint.touch();
+							}
 							if (endPoint == null) {
+								if (!makeRoom()) {
+									// every end point still has data for the application,
+									// the sender retries the BSN after its timeout
+									System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno())
+											+ "\tDROP! NO ROOM FOR END POINT");
+									break;
+								}
 								// new end point just started
 								endPoint = new GUDPEndPoint(sock.getAddress(), sock.getPort());
 								endPoint.setBase(0);
 								endPoint.setNextseqnum(0);
 								endPoint.setLast(0);
 								endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
+								endPoint.setMaxHold(maxHold);
+								endPoint.setMaxMessage(maxMessage);
+								endPoint.setMaxFragmentBytes(maxFragmentBytes);
 								receiverList.add(endPoint);
+								receiverIndex.put(endPoint.getRemoteEndPoint(), endPoint);
 								if (debug) {
 									System.err.println("ADD RCV ENDPOINT: "
 											+ endPoint.getRemoteEndPoint().getAddress() + ":"
@@ -201,6 +255,7 @@ public class ReceiverThread extends Thread {
 								if (receivePacket) {
 									System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno()));
 									endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
+									deliverBSN(endPoint, gudppacket);
 									sendACK(endPoint, gudppacket);
 								} else {
 									System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno()) + "\tDROP!");
@@ -214,13 +269,14 @@ public class ReceiverThread extends Thread {
 								switch (receiverDrop) {
 									case FIRST_BSN:
 										// assume BSN is always not in the same range as the previous transmission
-										if ((gudppacket.getSeqno() <= endPoint.getExpectedseqnum()
+										if (GUDPPacket.seqLEQ(gudppacket.getSeqno(), endPoint.getExpectedseqnum()
 												- endPoint.getWindowSize())
-												|| (gudppacket.getSeqno() >= endPoint.getExpectedseqnum()
-														+ endPoint.getWindowSize())) {
+												|| GUDPPacket.seqLEQ(endPoint.getExpectedseqnum()
+														+ endPoint.getWindowSize(), gudppacket.getSeqno())) {
 											// New incoming BSN. Reset EndPoint with new seq but drop the BSN packet.
 											endPoint.clear();
 											endPoint.setFinished(false);
+											endPoint.setPersistent(false);
 											endPoint.setDropReceive(true);
 											endPoint.setExpectedseqnum(gudppacket.getSeqno());
 											System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno())
@@ -247,10 +303,12 @@ public class ReceiverThread extends Thread {
 								if (receivePacket) {
 									endPoint.clear();
 									endPoint.setFinished(false);
+									endPoint.setPersistent(false);
 									endPoint.setDropReceive(false);
 									System.err.println(
 											"\t RCV BSN\t" + (gudppacket.getSeqno()) + "\tALSO RESET END POINT");
 									endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
+									deliverBSN(endPoint, gudppacket);
 									sendACK(endPoint, gudppacket);
 								} else {
 									System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno())
@@ -283,6 +341,7 @@ public class ReceiverThread extends Thread {
 									if (gudppacket.getSeqno() == endPoint.getExpectedseqnum()) {
 										System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno()));
 										endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
+										deliverBSN(endPoint, gudppacket);
 										sendACK(endPoint, gudppacket);
 									} else {
 										System.err.println("\t RCV BSN\t" + (gudppacket.getSeqno())
@@ -302,9 +361,14 @@ public class ReceiverThread extends Thread {
 					case GUDPPacket.TYPE_DATA:
 						// DATA signifies incoming data from an existing remoteEndPoint
 						// Otherwise, ignore the DATA packet
+						if ((gudppacket.getFlags() & GUDPPacket.FLAG_ACK) != 0) {
+							// reverse traffic: the peer piggybacked an ACK for our DATA
+							processACK(sock, gudppacket.getAck());
+						}
 						synchronized (receiverList) {
-							endPoint = getEndPoint(receiverList, sock.getAddress(), sock.getPort());
+							endPoint = getEndPoint(sock);
 							if (endPoint != null) {
+								endPoint.touch();
 
 								boolean receivePacket = true;
 								switch (receiverDrop) {
@@ -332,12 +396,28 @@ public class ReceiverThread extends Thread {
 								}
 
 								if (receivePacket) {
+									if ((gudppacket.getFlags() & GUDPPacket.FLAG_RESYNC) != 0
+											&& GUDPPacket.seqLEQ(endPoint.getExpectedseqnum(), gudppacket.getSeqno())) {
+										// the sender renumbered from here on, after a PMTU black hole
+										endPoint.resync(gudppacket.getSeqno());
+									}
 									if (gudppacket.getSeqno() == endPoint.getExpectedseqnum()) {
 										System.err.println("\t RCV DATA\t" + (gudppacket.getSeqno()));
-										endPoint.add(gudppacket);
+										endPoint.fecCache(gudppacket);
+										deliver(endPoint, gudppacket);
 										endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
-										sendACK(endPoint, gudppacket);
-										this.receiverList.notify();
+										// DATA after FIN: the sender continues a persistent session
+										endPoint.setFinished(false);
+										releaseHeld(endPoint);
+										acknowledgeDATA(endPoint, endPoint.getExpectedseqnum());
+										this.receiverList.notifyAll();
+									} else if (!endPoint.getFinished() && endPoint.hold(gudppacket)) {
+										System.err.println("\t RCV DATA\t" + (gudppacket.getSeqno())
+												+ "\tHOLD! AHEAD OF EXPECTED SEQ");
+										endPoint.fecCache(gudppacket);
+										deliverEarly(endPoint, gudppacket);
+										// duplicate ACK for expectedseqnum, the gap is still open
+										sendACK(endPoint, endPoint.getExpectedseqnum());
 									} else {
 										System.err.println("\t RCV DATA\t" + (gudppacket.getSeqno())
 												+ "\tIGNORE! NOT EXPECTED SEQ");
@@ -361,8 +441,9 @@ public class ReceiverThread extends Thread {
 						// Otherwise, ignore the FIN packet
 						// Use last variable to record the end of transmission
 						synchronized (receiverList) {
-							endPoint = getEndPoint(receiverList, sock.getAddress(), sock.getPort());
+							endPoint = getEndPoint(sock);
 							if (endPoint != null) {
+								endPoint.touch();
 
 								boolean receivePacket = true;
 								switch (receiverDrop) {
@@ -394,7 +475,14 @@ public class ReceiverThread extends Thread {
 										System.err.println("\t RCV FIN\t" + (gudppacket.getSeqno()));
 										endPoint.setExpectedseqnum(gudppacket.getSeqno() + 1);
 										endPoint.setFinished(true);
-										sendACK(endPoint, gudppacket);
+										endPoint.setPersistent((gudppacket.getFlags() & GUDPPacket.FLAG_KEEP) != 0);
+										releaseHeld(endPoint);
+										sendACK(endPoint, endPoint.getExpectedseqnum());
+										this.receiverList.notifyAll();
+									} else if (!endPoint.getFinished() && endPoint.hold(gudppacket)) {
+										System.err.println("\t RCV FIN\t" + (gudppacket.getSeqno())
+												+ "\tHOLD! AHEAD OF EXPECTED SEQ");
+										sendACK(endPoint, endPoint.getExpectedseqnum());
 									} else {
 										System.err.println("\t RCV FIN\t" + (gudppacket.getSeqno())
 												+ "\tIGNORE! NOT EXPECTED SEQ");
@@ -412,6 +500,89 @@ public class ReceiverThread extends Thread {
 						} /* synchronized (receiverList) */
 						break;
 
+					case GUDPPacket.TYPE_PROBE:
+						// path MTU probe: tell the sender this size got through. Answered
+						// without an end point too, or a peer evicted here would look like
+						// a path that does not carry the size
+						synchronized (receiverList) {
+							endPoint = getEndPoint(sock);
+							if (endPoint != null) {
+								endPoint.touch();
+							}
+							int size = gudppacket.getHeaderLength() + gudppacket.getPayloadLength();
+							if (debug) {
+								System.err.println("\t RCV PROBE\t" + size);
+							}
+							sendControl(sock, GUDPPacket.TYPE_PROBE_ACK, size);
+						} /* synchronized (receiverList) */
+						break;
+
+					case GUDPPacket.TYPE_PROBE_ACK:
+						synchronized (senderList) {
+							endPoint = s.getEndPoint(sock);
+							if (endPoint != null) {
+								if (debug) {
+									System.err.println("\t RCV PROBE ACK\t" + gudppacket.getSeqno());
+								}
+								endPoint.probeAcked(gudppacket.getSeqno());
+							}
+						} /* synchronized (senderList) */
+						break;
+
+					case GUDPPacket.TYPE_FEC:
+						// FEC: parity over a block of DATA, rebuild the one missing packet if possible
+						synchronized (receiverList) {
+							endPoint = getEndPoint(sock);
+							if (endPoint != null && !endPoint.getFinished()) {
+								endPoint.touch();
+								GUDPPacket rebuilt = endPoint.fecRecover(gudppacket);
+								if (rebuilt == null) {
+									if (debug) {
+										System.err.println("\t RCV FEC\t" + (gudppacket.getSeqno()) + "\tNOTHING TO RECOVER");
+									}
+								} else if (rebuilt.getSeqno() == endPoint.getExpectedseqnum()) {
+									System.err.println("\t RCV FEC\t" + (gudppacket.getSeqno())
+											+ "\tRECOVER DATA " + rebuilt.getSeqno());
+									endPoint.fecCache(rebuilt);
+									deliver(endPoint, rebuilt);
+									endPoint.setExpectedseqnum(rebuilt.getSeqno() + 1);
+									releaseHeld(endPoint);
+									acknowledgeDATA(endPoint, endPoint.getExpectedseqnum());
+									this.receiverList.notifyAll();
+								} else if (endPoint.hold(rebuilt)) {
+									System.err.println("\t RCV FEC\t" + (gudppacket.getSeqno())
+											+ "\tRECOVER DATA " + rebuilt.getSeqno() + " AND HOLD");
+									endPoint.fecCache(rebuilt);
+									deliverEarly(endPoint, rebuilt);
+								}
+							}
+						} /* synchronized (receiverList) */
+						break;
+
+					case GUDPPacket.TYPE_FWD:
+						// FWD: the sender abandoned everything before seqno, skip ahead to it
+						synchronized (receiverList) {
+							endPoint = getEndPoint(sock);
+							if (endPoint != null) {
+								endPoint.touch();
+								if (GUDPPacket.seqLT(endPoint.getExpectedseqnum(), gudppacket.getSeqno())) {
+									System.err.println("\t RCV FWD\t" + (gudppacket.getSeqno())
+											+ "\tSKIP FROM " + endPoint.getExpectedseqnum());
+									skipTo(endPoint, gudppacket.getSeqno());
+									releaseHeld(endPoint);
+									this.receiverList.notifyAll();
+								} else {
+									System.err.println("\t RCV FWD\t" + (gudppacket.getSeqno())
+											+ "\tIGNORE! ALREADY PAST");
+								}
+								// ACK in either case, the sender retries the FWD until it is ACKed
+								sendACK(endPoint, endPoint.getExpectedseqnum());
+							} else {
+								System.err.println("\t RCV FWD\t" + (gudppacket.getSeqno()) + "\tIGNORE! NO END POINT");
+							}
+						} /* synchronized (receiverList) */
+						break;
+
 				} /* switch */
 				// } /* synchronized (receiveList) */
 
@@ -426,17 +597,269 @@ public class ReceiverThread extends Thread {
 	} /* public void run() */
 
 	/*
-	 * Get the end point from the list. Return null if not found.
+	 * Process a cumulative ACK from sock, either a standalone ACK packet or one
+	 * piggybacked on DATA. Remove all ACKed packets from the send queue.
+	 */
+	private void processACK(InetSocketAddress sock, int ack) {
+		synchronized (senderList) {
+			GUDPEndPoint endPoint = s.getEndPoint(sock);
+			if (endPoint != null) {
+				endPoint.touch();
+				boolean sendReceiveACK = true;
+				switch (senderDrop) {
+					case NOTHING:
+					case FIRST_BSN:
+					case FIRST_DATA:
+					case FIRST_FIN:
+						break;
+					case FIRST_ACK:
+						// drop ACK for the first packet arrived at the sender
+						if (!endPoint.getDropSend()) {
+							sendReceiveACK = false;
+							endPoint.setDropSend(true);
+						}
+						break;
+					case RANDOM:
+						if (Math.random() <= endPoint.getChance()) {
+							sendReceiveACK = false;
+						}
+						break;
+					case ALL:
+						sendReceiveACK = false;
+						break;
+				}
+
+				if (sendReceiveACK && ack == endPoint.getBase()
+						&& GUDPPacket.seqLT(ack, endPoint.getNextseqnum())) {
+					// duplicate ACK: the packet at base is missing, later ones got through
+					if (debug) {
+						System.err.println("\t RCV ACK\t" + (ack) + "\tDUPLICATE");
+					}
+					if (endPoint.duplicateAck()) {
+						s.fastRetransmit(endPoint);
+					}
+				} else if ((sendReceiveACK) && GUDPPacket.seqLEQ(endPoint.getBase(), ack)
+						&& GUDPPacket.seqLEQ(ack - 1, endPoint.getLast())) {
+					if (debug) {
+						System.err.println("\t RCV ACK\t" + (ack));
+					}
+					GUDPPacket acked = endPoint.getPacket(ack - 1);
+					if (acked != null && !acked.getRetransmitted() && acked.getSentTime() != 0) {
+						endPoint.sampleRtt(System.nanoTime() - acked.getSentTime());
+					}
+					endPoint.removeAllACK(ack - 1);
+					endPoint.setBase(ack);
+					endPoint.setState(GUDPEndPoint.endPointState.RCV);
+					s.FSMSender(endPoint);
+					// also wakes up producers blocked on a full send queue
+					senderList.notifyAll();
+				} else {
+					System.err.println("\t RCV ACK\t" + (ack) + "\tDROP!");
+				}
+			} else {
+				// no remoteEndPoint: do nothing
+				System.err.println(
+						"\t RCV ACK\t" + (ack) + "\tNO MATCHING END POINT. DROP!");
+			}
+		} /* synchronized (senderList) */
+	} /* private void processACK */
+
+	/*
+	 * Evict receive end points that have been idle for idleTimeout and have
+	 * nothing left for the application. Runs from sweepTimer.
+	 */
+	private void sweepIdle() {
+		long now = System.currentTimeMillis();
+		synchronized (receiverList) {
+			Iterator<GUDPEndPoint> iter = receiverList.iterator();
+			while (iter.hasNext()) {
+				GUDPEndPoint endPoint = iter.next();
+				if (!endPoint.hasUndelivered() && endPoint.isIdle(now, idleTimeout)) {
+					iter.remove();
+					evict(endPoint);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Make room for a new end point in receiverList by evicting the least
+	 * recently active finished session. An end point with packets that were
+	 * ACKed but not yet delivered is never evicted, as the sender believes they
+	 * arrived, and neither is an open session, or a persistent one whose FIN
+	 * carried FLAG_KEEP, as its sender would retry into the void. Those only go
+	 * through sweepIdle, after the sender gave up its side. Return false if
+	 * there is no room. Must be called with receiverList locked.
+	 */
+	private boolean makeRoom() {
+		while (receiverList.size() >= maxEndPoints && !receiverList.isEmpty()) {
+			GUDPEndPoint victim = null;
+			for (GUDPEndPoint endPoint : receiverList) {
+				if (endPoint.getFinished() && !endPoint.getPersistent() && !endPoint.hasUndelivered()
+						&& (victim == null || endPoint.getLastActive() < victim.getLastActive())) {
+					victim = endPoint;
+				}
+			}
+			if (victim == null) {
+				return false;
+			}
+			receiverList.remove(victim);
+			evict(victim);
+		}
+		return true;
+	}
+
+	private void evict(GUDPEndPoint endPoint) {
+		receiverIndex.remove(endPoint.getRemoteEndPoint());
+		evictions++;
+		if (endPoint.getReady()) {
+			readyList.remove(endPoint);
+			endPoint.setReady(false);
+		}
+		if (debug) {
+			System.err.println("EVICT RCV ENDPOINT: " + endPoint.getRemoteEndPoint()
+					+ " (" + endPoint.getMemoryUsage() + " bytes)");
+		}
+		endPoint.clear();
+	}
+
+	/*
+	 * Get the end point for addr from receiverList. Return null if not found.
+	 */
+	public GUDPEndPoint getEndPoint(InetSocketAddress addr) {
+		synchronized (receiverList) {
+			return receiverIndex.get(addr);
+		}
+	}
+
+	/*
+	 * A BSN may carry the first payload of the session. Queue it like DATA.
+	 */
+	private void deliverBSN(GUDPEndPoint endPoint, GUDPPacket gudppacket) {
+		if (gudppacket.getPayloadLength() > 0) {
+			deliver(endPoint, gudppacket);
+			this.receiverList.notifyAll();
+		}
+	}
+
+	/*
+	 * ACK in-order DATA. With piggybacking enabled and DATA waiting to be sent
+	 * to the same peer, hand the ACK to SenderThread instead and only send a
+	 * standalone ACK if it has not been piggybacked after ackDelay.
 	 */
-	public GUDPEndPoint getEndPoint(LinkedList<GUDPEndPoint> list, InetAddress addr, int port) {
-		synchronized (list) {
-			for (int i = 0; i < list.size(); i++) {
-				if ((list.get(i).getRemoteEndPoint().getAddress().equals(addr))
-						&& (list.get(i).getRemoteEndPoint().getPort() == port)) {
-					return list.get(i);
+	private void acknowledgeDATA(GUDPEndPoint endPoint, int ack) {
+		InetSocketAddress addr = endPoint.getRemoteEndPoint();
+		GUDPEndPoint reverse = piggyback ? s.getEndPoint(addr) : null;
+		if (reverse == null || !reverse.hasUnsent()) {
+			sendACK(endPoint, ack);
+			return;
+		}
+		s.deferACK(addr, ack);
+		ackTimer.schedule(new TimerTask() {
+			public void run() {
+				synchronized (receiverList) {
+					if (s.cancelACK(addr, ack)) {
+						sendACK(endPoint, ack);
+					}
 				}
 			}
-			return null;
+		}, ackDelay);
+	}
+
+	/*
+	 * Put an in-order packet in the receive queue of endPoint and make sure the
+	 * end point is in readyList, so receive() finds it without scanning.
+	 * Fragments wait until their message is complete.
+	 * Must be called with receiverList locked.
+	 */
+	private void deliver(GUDPEndPoint endPoint, GUDPPacket gudppacket) {
+		if (gudppacket.getDelivered()) {
+			// its stream got it while it was held
+			return;
+		}
+		if (!endPoint.reassemble(gudppacket)) {
+			return;
+		}
+		if (!endPoint.getReady()) {
+			endPoint.setReady(true);
+			readyList.add(endPoint);
+		}
+	}
+
+	/*
+	 * A packet was just held. Packets of other streams than 0 that are next in
+	 * their own stream go to the application right away, so a loss in one
+	 * stream does not hold up the others. They stay held until the gap in the
+	 * GBN sequence is filled. Must be called with receiverList locked.
+	 */
+	private void deliverEarly(GUDPEndPoint endPoint, GUDPPacket gudppacket) {
+		GUDPPacket next;
+		while ((next = endPoint.nextInStream(gudppacket.getStream())) != null) {
+			if (debug) {
+				System.err.println("\t RCV DATA\t" + next.getSeqno() + "\tDELIVER ON STREAM "
+						+ next.getStream() + " AHEAD OF GAP");
+			}
+			deliver(endPoint, next);
+			next.setDelivered(true);
+			this.receiverList.notifyAll();
+		}
+	}
+
+	/*
+	 * Move held packets that are in order now into the receive queue.
+	 * Must be called with receiverList locked.
+	 */
+	private void releaseHeld(GUDPEndPoint endPoint) {
+		GUDPPacket held;
+		while ((held = endPoint.unhold(endPoint.getExpectedseqnum())) != null) {
+			if (debug) {
+				System.err.println("\t RCV DATA\t" + (held.getSeqno()) + "\tRELEASE FROM HOLD");
+			}
+			if (held.getType() == GUDPPacket.TYPE_FIN) {
+				endPoint.setFinished(true);
+				endPoint.setPersistent((held.getFlags() & GUDPPacket.FLAG_KEEP) != 0);
+			} else {
+				deliver(endPoint, held);
+				endPoint.setFinished(false);
+			}
+			endPoint.setExpectedseqnum(held.getSeqno() + 1);
+		}
+	}
+
+	/*
+	 * Advance expectedseqnum to seq after a FWD. Packets in between that did
+	 * arrive and are held still go to the application, only the gaps are lost.
+	 * Must be called with receiverList locked.
+	 */
+	private void skipTo(GUDPEndPoint endPoint, int seq) {
+		for (int i = endPoint.getExpectedseqnum(); GUDPPacket.seqLT(i, seq); i++) {
+			GUDPPacket held = endPoint.unhold(i);
+			if (held != null) {
+				deliver(endPoint, held);
+			} else {
+				// a fragmented message with a skipped packet cannot be completed
+				endPoint.dropFragments();
+			}
+		}
+		endPoint.setExpectedseqnum(seq);
+	}
+
+	/*
+	 * Send a header-only control packet of the given type to addr
+	 */
+	private void sendControl(InetSocketAddress addr, short type, int seqno) {
+		ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		GUDPPacket gpack = new GUDPPacket(buffer);
+		gpack.setSocketAddress(addr);
+		gpack.setVersion(GUDPPacket.GUDP_VERSION);
+		gpack.setType(type);
+		gpack.setSeqno(seqno);
+		gpack.setPayloadLength(0);
+		try {
+			this.sock.send(gpack.pack());
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -444,6 +867,13 @@ public class ReceiverThread extends Thread {
 	 * send ACK to the remoteEndPoint
 	 */
 	public void sendACK(GUDPEndPoint endPoint, GUDPPacket gudppacket) {
+		sendACK(endPoint, gudppacket.getSeqno() + 1);
+	}
+
+	/*
+	 * send ACK with the given cumulative ACK number (next expected seq)
+	 */
+	public void sendACK(GUDPEndPoint endPoint, int ack) {
 		try {
 			ByteBuffer ackBuf = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
 			ackBuf.order(ByteOrder.BIG_ENDIAN);
@@ -451,7 +881,7 @@ public class ReceiverThread extends Thread {
 			gpack.setSocketAddress(endPoint.getRemoteEndPoint());
 			gpack.setVersion(GUDPPacket.GUDP_VERSION);
 			gpack.setType(GUDPPacket.TYPE_ACK);
-			gpack.setSeqno(gudppacket.getSeqno() + 1);
+			gpack.setSeqno(ack);
 			byte[] data = new byte[0];
 			gpack.setPayloadLength(0);
 			gpack.setPayload(data);
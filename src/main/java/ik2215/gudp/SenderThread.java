@@ -3,7 +3,14 @@ package ik2215.gudp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * SenderThread monitors send queues and sends packets whenever there are packets in the queues
@@ -11,9 +18,19 @@ import java.util.LinkedList;
 public class SenderThread extends Thread {
 	private final DatagramSocket sock;
 	private final LinkedList<GUDPEndPoint> senderList;
+	private final HashMap<InetSocketAddress, GUDPEndPoint> senderIndex = new HashMap<>(); // guarded by senderList
 	private boolean runFlag = true;
 	private boolean debug = true;
 	private GUDPSocket.drop senderDrop;
+	private TransmitScheduler scheduler = new FIFOScheduler();
+	private boolean heldBack = false; // the scheduler stopped an end point that could send more this round
+	private static final long LOOP_SLEEP = 50L; // ms between rounds
+	private long idleTimeout = GUDPEndPoint.IDLE_TIMEOUT;
+	private long evictions = 0;
+	/* ACKs deferred by the ReceiverThread, waiting to ride on the next DATA to that peer */
+	private final ConcurrentHashMap<InetSocketAddress, Integer> pendingACKs = new ConcurrentHashMap<>();
+	/* shared payloads are gathered here for sending, see GUDPPacket.pack(byte[]); guarded by senderList */
+	private final byte[] scratch = new byte[GUDPPacket.MAX_UDP_LEN];
 
 	public SenderThread(DatagramSocket sock, LinkedList<GUDPEndPoint> senderList, GUDPSocket.drop senderDrop) {
 		this.sock = sock;
@@ -25,6 +42,218 @@ public class SenderThread extends Thread {
 		this.runFlag = false;
 	}
 
+	public void setDebug(boolean value) {
+		this.debug = value;
+	}
+
+	public void setScheduler(TransmitScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public void setIdleTimeout(long timeout) {
+		this.idleTimeout = timeout;
+	}
+
+	public long getEvictions() {
+		return this.evictions;
+	}
+
+	/*
+	 * Get the end point for addr from senderList. Return null if not found.
+	 */
+	public GUDPEndPoint getEndPoint(InetSocketAddress addr) {
+		synchronized (senderList) {
+			return senderIndex.get(addr);
+		}
+	}
+
+	/*
+	 * Add a new end point to senderList. Must be called with senderList locked.
+	 */
+	public void addEndPoint(GUDPEndPoint endPoint) {
+		senderList.add(endPoint);
+		senderIndex.put(endPoint.getRemoteEndPoint(), endPoint);
+	}
+
+	/*
+	 * Make room for a new remoteEndPoint in senderList by evicting the least
+	 * recently active one whose session is over. A session that is still open,
+	 * or persistent, is never evicted: the peer keeps its side open and would
+	 * not accept a new BSN. Return false if there is no such remoteEndPoint.
+	 * Must be called with senderList locked.
+	 */
+	public boolean makeRoom(int maxEndPoints) {
+		while (senderList.size() >= maxEndPoints) {
+			GUDPEndPoint victim = null;
+			for (GUDPEndPoint endPoint : senderList) {
+				if (endPoint.getFinished() && endPoint.isEmptyQueue() && !endPoint.getPersistent()
+						&& (victim == null || endPoint.getLastActive() < victim.getLastActive())) {
+					victim = endPoint;
+				}
+			}
+			if (victim == null) {
+				return false;
+			}
+			senderList.remove(victim);
+			senderIndex.remove(victim.getRemoteEndPoint());
+			evictions++;
+			if (debug) {
+				System.err.println("EVICT SND ENDPOINT: " + victim.getRemoteEndPoint());
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Ask SenderThread to piggyback ack on the next DATA packet to addr.
+	 * A newer ACK for the same peer replaces an older one (ACKs are cumulative).
+	 */
+	public void deferACK(InetSocketAddress addr, int ack) {
+		pendingACKs.put(addr, ack);
+	}
+
+	/*
+	 * Withdraw a deferred ACK. Return false if it was already piggybacked or
+	 * replaced by a newer one.
+	 */
+	public boolean cancelACK(InetSocketAddress addr, int ack) {
+		return pendingACKs.remove(addr, ack);
+	}
+
+	/*
+	 * Turn a queued GUDP packet into a datagram, piggybacking a deferred ACK on DATA
+	 */
+	private DatagramPacket pack(GUDPEndPoint endPoint, GUDPPacket packet) throws IOException {
+		if (packet.getType() == GUDPPacket.TYPE_DATA && !pendingACKs.isEmpty()) {
+			Integer ack = pendingACKs.remove(endPoint.getRemoteEndPoint());
+			if (ack != null) {
+				if (debug) {
+					System.err.println("\tSEND ACK\t" + ack + "\tPIGGYBACK ON DATA " + packet.getSeqno());
+				}
+				return packet.packWithAck(ack, scratch);
+			}
+		}
+		return packet.pack(scratch);
+	}
+
+	/*
+	 * Abandon the packets at the front of the window that are past their
+	 * deadline, by telling the receiver to skip ahead with a FWD. The FWD is
+	 * sent once when the deadline passes, and again on every timeout until the
+	 * receiver ACKs it. Return the first seqno that is not abandoned.
+	 */
+	private int forward(GUDPEndPoint endPoint, boolean resend) {
+		int seq = endPoint.expiredUpTo(System.nanoTime());
+		if (seq == endPoint.getBase() || (!resend && seq == endPoint.getLastForward())) {
+			return seq;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		GUDPPacket fwd = new GUDPPacket(buffer);
+		fwd.setVersion(GUDPPacket.GUDP_VERSION);
+		fwd.setType(GUDPPacket.TYPE_FWD);
+		fwd.setSeqno(seq);
+		fwd.setPayloadLength(0);
+		fwd.setSocketAddress(endPoint.getRemoteEndPoint());
+		try {
+			sock.send(fwd.pack());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		endPoint.setLastForward(seq);
+		if (debug) {
+			System.err.println("\tSEND FWD\t" + seq + "\tABANDON " + endPoint.getBase() + " - " + (seq - 1));
+		}
+		return seq;
+	}
+
+	/*
+	 * Resend the packet at base right away, once duplicate ACKs show that it
+	 * was lost while the receiver holds the packets after it. The timer
+	 * restarts, so the rest of the window is only resent if this fails too.
+	 * Must be called with senderList locked.
+	 */
+	public void fastRetransmit(GUDPEndPoint endPoint) {
+		GUDPPacket packet = endPoint.getPacket(endPoint.getBase());
+		if (packet == null) {
+			return;
+		}
+		packet.setRetransmitted(true);
+		try {
+			sock.send(pack(endPoint, packet));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		int length = packet.getHeaderLength() + packet.getPayloadLength();
+		scheduler.transmitted(endPoint, length);
+		endPoint.paced(length);
+		endPoint.stopTimer();
+		endPoint.startTimer();
+		if (debug) {
+			System.err.println("\tSEND DATA\t" + packet.getSeqno() + "\tFAST RETRANSMIT");
+		}
+	}
+
+	/*
+	 * FEC: add a first transmission to the parity block of endPoint, and send
+	 * the parity when the block is full. Anything other than DATA ends the
+	 * block early, so a block never spans a BSN or FIN.
+	 */
+	private void protect(GUDPEndPoint endPoint, GUDPPacket packet, DatagramPacket udppacket) {
+		if (packet.getType() != GUDPPacket.TYPE_DATA) {
+			sendParity(endPoint);
+		} else if (endPoint.fecAdd(packet.getSeqno(), udppacket.getData(), udppacket.getLength())) {
+			sendParity(endPoint);
+		}
+	}
+
+	private void sendParity(GUDPEndPoint endPoint) {
+		GUDPPacket parity = endPoint.fecParity();
+		if (parity == null) {
+			return;
+		}
+		try {
+			sock.send(parity.pack());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (debug) {
+			System.err.println("\tSEND FEC\t" + parity.getSeqno());
+		}
+	}
+
+	/*
+	 * Path MTU discovery: send the probe endPoint asks for, if any. A probe the
+	 * local stack refuses as too long fails right away.
+	 */
+	private void probe(GUDPEndPoint endPoint) {
+		long now = System.nanoTime();
+		int size = endPoint.nextProbe(now);
+		if (size == 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		GUDPPacket probe = new GUDPPacket(buffer);
+		probe.setVersion(GUDPPacket.GUDP_VERSION);
+		probe.setType(GUDPPacket.TYPE_PROBE);
+		probe.setSeqno(size);
+		probe.setPayloadLength(size - GUDPPacket.HEADER_SIZE);
+		probe.setSocketAddress(endPoint.getRemoteEndPoint());
+		try {
+			sock.send(probe.pack());
+			endPoint.probeSent(now);
+			if (debug) {
+				System.err.println("\tSEND PROBE\t" + size);
+			}
+		} catch (IOException e) {
+			endPoint.probeFailed();
+			if (debug) {
+				System.err.println("\tSEND PROBE\t" + size + "\tTOO LONG: " + e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		/*
@@ -61,12 +290,33 @@ public class SenderThread extends Thread {
 			}
 		}
 
+		long sleep;
 		while (runFlag) {
 			synchronized (senderList) {
-				for (GUDPEndPoint endPoint : senderList) {
-					FSMSender(endPoint);
-					if (endPoint.getFinished() && endPoint.isEmptyQueue()) {
-						senderList.remove(endPoint);
+				long now = System.currentTimeMillis();
+				// the scheduler only orders the end points: as long as one of them
+				// could send more, another round starts right away
+				do {
+					heldBack = false;
+					List<GUDPEndPoint> order = scheduler.beginRound(senderList);
+					for (GUDPEndPoint endPoint : order) {
+						FSMSender(endPoint);
+					}
+				} while (heldBack && runFlag);
+				Iterator<GUDPEndPoint> iter = senderList.iterator();
+				while (iter.hasNext()) {
+					GUDPEndPoint endPoint = iter.next();
+					// persistent sessions keep their state for the next transfer
+					if (endPoint.getFinished() && endPoint.isEmptyQueue() && !endPoint.getPersistent()) {
+						iter.remove();
+						senderIndex.remove(endPoint.getRemoteEndPoint());
+					} else if (endPoint.getFinished() && endPoint.isEmptyQueue()
+							&& endPoint.isIdle(now, idleTimeout / 2)) {
+						// give up an idle persistent session well before the receiver
+						// evicts its side, the next send() starts over with a BSN
+						iter.remove();
+						senderIndex.remove(endPoint.getRemoteEndPoint());
+						evictions++;
 					}
 				}
 				if (senderList.isEmpty()) {
@@ -81,11 +331,20 @@ public class SenderThread extends Thread {
 				if (!runFlag) {
 					senderList.notifyAll();
 				}
-			}
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				sleep = LOOP_SLEEP;
+				for (GUDPEndPoint endPoint : senderList) {
+					long delay = endPoint.paceDelay();
+					if (delay > 0) {
+						// wake up when a paced end point has tokens for its next packet
+						sleep = Math.min(sleep, delay);
+					}
+				}
+				try {
+					// an ACK or a new packet notifies senderList and starts the next round early
+					senderList.wait(sleep);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 
@@ -134,23 +393,58 @@ public class SenderThread extends Thread {
 				}
 				break;
 			case SEND:
-				while (endPoint.getNextseqnum() < endPoint.getBase() + endPoint.getWindowSize() &&
-						endPoint.getNextseqnum() <= endPoint.getLast()) {
+				boolean held = false;
+				probe(endPoint);
+				endPoint.expirePending(System.nanoTime());
+				forward(endPoint, false);
+				while (GUDPPacket.seqLT(endPoint.getNextseqnum(), endPoint.getBase() + endPoint.getWindowSize())) {
 					int seqnum = endPoint.getNextseqnum();
-					GUDPPacket packet = endPoint.getPacket(seqnum);
+					boolean drawn = GUDPPacket.seqLEQ(seqnum, endPoint.getLast());
+					// the next packet is either in the window already, or the highest priority pending one
+					GUDPPacket packet = drawn ? endPoint.getPacket(seqnum) : endPoint.peekPending();
+					if (packet == null) {
+						break;
+					}
+					int length = packet.getHeaderLength() + packet.getPayloadLength();
+					if (!endPoint.paceAllows(length)) {
+						// out of pacing tokens: continue when paceDelay() has passed
+						break;
+					}
+					if (!scheduler.mayTransmit(endPoint, length)) {
+						// out of transmit credit: continue in the next round, right away
+						held = true;
+						break;
+					}
+					if (!drawn) {
+						endPoint.draw();
+					}
 					try {
-						udppacket = packet.pack();
+						udppacket = pack(endPoint, packet);
 						sock.send(udppacket);
+						if (endPoint.getFecBlock() > 0) {
+							protect(endPoint, packet, udppacket);
+						}
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
+					packet.setSentTime(System.nanoTime());
+					scheduler.transmitted(endPoint, length);
+					endPoint.paced(length);
 					if (endPoint.getBase() == endPoint.getNextseqnum()) {
+						// the oldest unACKed packet is timed, as in GBN
 						endPoint.startTimer();
-						// ??? TODO
 					}
 					endPoint.setNextseqnum(endPoint.getNextseqnum() + 1);
 				}
-				endPoint.setState(GUDPEndPoint.endPointState.WAIT);
+				if (!endPoint.hasUnsent()) {
+					// nothing more coming for now: protect the partial block too
+					sendParity(endPoint);
+				}
+				if (held) {
+					heldBack = true;
+				} else {
+					endPoint.setState(GUDPEndPoint.endPointState.WAIT);
+				}
 				break;
 			case RCV:
 				if (endPoint.getNextseqnum() == endPoint.getBase()) {
@@ -168,15 +462,33 @@ public class SenderThread extends Thread {
 					senderList.notifyAll();
 					break;
 				} else {
-					endPoint.startTimer();
-					for (int i = endPoint.getBase(); i < endPoint.getNextseqnum(); i++) {
+					if (endPoint.getRetry() >= 1 && endPoint.blackHole()) {
+						// second timeout in a row with a raised segment size: the large
+						// packets in the window are split and sent again as new ones
+						boolean resync = endPoint.refragment();
+						if (debug) {
+							System.err.println("PMTU BLACK HOLE: " + endPoint.getRemoteEndPoint()
+									+ " back to " + endPoint.getMaxSegment() + " bytes"
+									+ (resync ? ", RESYNC FROM " + endPoint.getNextseqnum() : ""));
+						}
+					}
+					if (GUDPPacket.seqLT(endPoint.getBase(), endPoint.getNextseqnum())) {
+						// else SEND starts it with the first packet
+						endPoint.startTimer();
+					}
+					int from = forward(endPoint, true);
+					for (int i = from; GUDPPacket.seqLT(i, endPoint.getNextseqnum()); i++) {
 						GUDPPacket packet = endPoint.getPacket(i);
+						packet.setRetransmitted(true);
 						try {
-							udppacket = packet.pack();
+							udppacket = pack(endPoint, packet);
 							sock.send(udppacket);
 						} catch (IOException e) {
 							e.printStackTrace();
 						}
+						int length = packet.getHeaderLength() + packet.getPayloadLength();
+						scheduler.transmitted(endPoint, length);
+						endPoint.paced(length);
 					}
 				}
 				endPoint.setRetry(endPoint.getRetry() + 1);
@@ -0,0 +1,99 @@
+package ik2215.gudp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A message payload sent to many remoteEndPoints at once. The bytes are
+ * stored once: the GUDP packets queued for each destination have their own
+ * headers and refer to slices of this payload, which are copied into the
+ * datagram only when the packet is transmitted.
+ *
+ * The payload counts its references. The application holds the first one and
+ * gives it up with release() after sending; each packet holds one until it is
+ * ACKed, dropped or abandoned. The buffers must not be changed until
+ * isReleased() is true.
+ */
+public class SharedPayload {
+    private ByteBuffer[] parts;
+    private final int length;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /*
+     * A payload made of the remaining bytes of data, in order. Nothing is
+     * copied, the buffers may be heap, direct or memory-mapped. Their
+     * positions are left unchanged.
+     */
+    public SharedPayload(ByteBuffer... data) {
+        parts = new ByteBuffer[data.length];
+        int total = 0;
+        for (int i = 0; i < data.length; i++) {
+            parts[i] = data[i].asReadOnlyBuffer();
+            total += parts[i].remaining();
+        }
+        length = total;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /*
+     * Read-only views of the payload, for callers that copy it as a whole
+     */
+    public ByteBuffer[] getBuffers() {
+        checkReleased();
+        ByteBuffer[] views = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            views[i] = parts[i].duplicate();
+        }
+        return views;
+    }
+
+    /*
+     * Copy length bytes starting at offset in the payload to dst, straight
+     * from the buffers: absolute reads, no views
+     */
+    public void copyTo(int offset, byte[] dst, int dstOffset, int length) {
+        checkReleased();
+        for (ByteBuffer part : parts) {
+            if (length == 0)
+                break;
+            int size = part.remaining();
+            if (offset >= size) {
+                offset -= size;
+                continue;
+            }
+            int n = Math.min(length, size - offset);
+            part.get(part.position() + offset, dst, dstOffset, n);
+            dstOffset += n;
+            length -= n;
+            offset = 0;
+        }
+    }
+
+    public void retain() {
+        if (refs.getAndUpdate(n -> n > 0 ? n + 1 : n) <= 0)
+            throw new IllegalStateException("Shared payload already released");
+    }
+
+    /*
+     * Give up one reference. The last one lets go of the buffers.
+     */
+    public void release() {
+        int held = refs.getAndUpdate(n -> n > 0 ? n - 1 : n);
+        if (held <= 0)
+            throw new IllegalStateException("Shared payload already released");
+        if (held == 1)
+            parts = new ByteBuffer[0];
+    }
+
+    public boolean isReleased() {
+        return refs.get() <= 0;
+    }
+
+    private void checkReleased() {
+        if (isReleased())
+            throw new IllegalStateException("Shared payload used after release");
+    }
+}
@@ -0,0 +1,36 @@
+package ik2215.gudp;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * TransmitScheduler decides how SenderThread shares transmit opportunities
+ * between the remoteEndPoints in senderList. All methods are called by
+ * SenderThread with senderList locked. Applications pass one of the
+ * implementations in this package, FIFOScheduler or DRRScheduler, to
+ * GUDPSocket.setScheduler(); they work on GUDPEndPoint, so they live here.
+ *
+ * A round ends early when mayTransmit() refuses an end point that has room
+ * in its window, and the next round starts right away. A scheduler thus
+ * orders and shares the transmissions, but never leaves the link idle.
+ */
+public interface TransmitScheduler {
+
+    /*
+     * Called at the start of every SenderThread round. Return the end points
+     * of senderList in the order FSMSender visits them, without changing
+     * senderList itself.
+     */
+    public List<GUDPEndPoint> beginRound(LinkedList<GUDPEndPoint> senderList);
+
+    /*
+     * Whether endPoint may send a new packet of length bytes in this round
+     */
+    public boolean mayTransmit(GUDPEndPoint endPoint, int length);
+
+    /*
+     * Account for a packet of length bytes sent to endPoint (including
+     * retransmissions, which are always allowed)
+     */
+    public void transmitted(GUDPEndPoint endPoint, int length);
+}
@@ -0,0 +1,213 @@
+package ik2215.gudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Block signatures for delta transfers (rsync style). The receiver splits
+ * the copy it already has, the basis, into blocks and sends a weak rolling
+ * checksum and an MD5 of each. The sender looks for those blocks at every
+ * offset of its file, and sends COPY for what the basis has and DATA for
+ * the rest. The new version replaces the basis once complete, with or
+ * without -o, so repeated syncs of a file keep diffing against the latest.
+ *
+ * SIGS payload: block size (4 bytes), then one SIGNATURE_LEN entry per
+ * block, in block order. A SIGS without entries ends the list.
+ */
+class VSDelta {
+    static final int MIN_BLOCK = 1024;
+    static final int MAX_BLOCK = 65536;
+    static final int SIGNATURE_LEN = 20; // weak checksum and MD5
+    static final int MAX_SIGNATURES = 3000; // per SIGS message
+    static final int MAX_SIGS_LEN = 4 + MAX_SIGNATURES * SIGNATURE_LEN;
+
+    /*
+     * Block size for a basis of size bytes: about its square root, which
+     * balances signature size against the bytes resent around a change
+     */
+    static int blockSize(long size) {
+        long block = (long) Math.sqrt((double) size) & ~63L;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, block));
+    }
+
+    static MessageDigest md5() throws IOException {
+        return VSFtp.digest("MD5");
+    }
+
+    static byte[] strong(MessageDigest md5, ByteBuffer buffer, int from, int length) {
+        ByteBuffer block = buffer.duplicate();
+        block.limit(from + length).position(from);
+        md5.reset();
+        md5.update(block);
+        return md5.digest();
+    }
+
+    /*
+     * Weak checksum of a block that can be moved along by one byte
+     */
+    static class Rolling {
+        private int a;
+        private int b;
+        private int length;
+
+        void init(ByteBuffer buffer, int from, int length) {
+            this.length = length;
+            a = 0;
+            b = 0;
+            for (int i = 0; i < length; i++) {
+                a += buffer.get(from + i) & 0xff;
+                b += a;
+            }
+        }
+
+        /*
+         * Drop out at the front of the block, add in at the back
+         */
+        void roll(byte out, byte in) {
+            a += (in & 0xff) - (out & 0xff);
+            b += a - length * (out & 0xff);
+        }
+
+        int value() {
+            return (a & 0xffff) | (b << 16);
+        }
+    }
+
+    /*
+     * Receiver: send the signatures of basis to the sender on stream.
+     * Without a basis only the end of the list is sent. The session closes
+     * after it.
+     */
+    static void sendSignatures(GUDPSocket socket, InetSocketAddress dest, int stream, FileChannel basis)
+            throws IOException {
+        long size = basis != null ? basis.size() : 0;
+        int blockSize = blockSize(size);
+        long blocks = size / blockSize; // a short last block is left out
+        MessageDigest md5 = md5();
+        Rolling rolling = new Rolling();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        ByteBuffer sigs = ByteBuffer.allocate(MAX_SIGS_LEN);
+        sigs.order(ByteOrder.BIG_ENDIAN);
+        sigs.putInt(blockSize);
+        for (long i = 0; i < blocks; i++) {
+            block.clear();
+            while (block.hasRemaining()) {
+                if (basis.read(block, i * blockSize + block.position()) < 0)
+                    throw new IOException("Basis file shrank");
+            }
+            rolling.init(block, 0, blockSize);
+            sigs.putInt(rolling.value());
+            sigs.put(strong(md5, block, 0, blockSize));
+            if (!sigs.hasRemaining()) {
+                send(socket, dest, stream, sigs);
+                sigs.clear();
+                sigs.putInt(blockSize);
+            }
+        }
+        if (sigs.position() > 4) {
+            send(socket, dest, stream, sigs);
+            sigs.clear();
+            sigs.putInt(blockSize);
+        }
+        send(socket, dest, stream, sigs); // no entries: the end
+        socket.finish(dest); // the reply is complete, see GUDPSocket.finish(InetSocketAddress)
+    }
+
+    private static void send(GUDPSocket socket, InetSocketAddress dest, int stream, ByteBuffer sigs)
+            throws IOException {
+        VSFtp vsSigs = new VSFtp(VSFtp.TYPE_SIGS, sigs.array(), sigs.position());
+        socket.send(vsSigs.getPacket(dest), stream);
+    }
+
+    /*
+     * Sender: the signatures of the receiver's basis, by weak checksum
+     */
+    static class Signatures {
+        private int blockSize = MIN_BLOCK;
+        private HashMap<Integer, ArrayList<Integer>> byWeak = new HashMap<>();
+        private ArrayList<byte[]> strong = new ArrayList<>();
+
+        int getBlockSize() {
+            return blockSize;
+        }
+
+        int count() {
+            return strong.size();
+        }
+
+        /*
+         * Add the entries of one SIGS message. Return false for the last one.
+         */
+        boolean add(byte[] data) throws IOException {
+            if (data.length < 4 || (data.length - 4) % SIGNATURE_LEN != 0)
+                throw new IOException("Invalid VS SIGS length " + data.length);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            blockSize = buffer.getInt();
+            if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK)
+                throw new IOException("Invalid VS block size " + blockSize);
+            if (!buffer.hasRemaining())
+                return false;
+            while (buffer.hasRemaining()) {
+                int weak = buffer.getInt();
+                byte[] md5 = new byte[SIGNATURE_LEN - 4];
+                buffer.get(md5);
+                ArrayList<Integer> blocks = byWeak.get(weak);
+                if (blocks == null) {
+                    blocks = new ArrayList<>();
+                    byWeak.put(weak, blocks);
+                }
+                blocks.add(strong.size());
+                strong.add(md5);
+            }
+            return true;
+        }
+
+        /*
+         * Index of a basis block equal to the block at from in buffer, whose
+         * weak checksum is weak, or -1. The MD5 is only computed on a weak hit.
+         */
+        int find(int weak, ByteBuffer buffer, int from, MessageDigest md5) {
+            ArrayList<Integer> candidates = byWeak.get(weak);
+            if (candidates == null)
+                return -1;
+            byte[] digest = strong(md5, buffer, from, blockSize);
+            for (int index : candidates) {
+                if (Arrays.equals(digest, strong.get(index)))
+                    return index;
+            }
+            return -1;
+        }
+    }
+
+    /*
+     * Sender: collect the signatures the destination sends on stream.
+     * Fails if REPLY_TIMEOUT passes without the next SIGS.
+     */
+    static Signatures receiveSignatures(GUDPSocket socket, int stream) throws IOException {
+        Signatures sigs = new Signatures();
+        byte[] buf = new byte[MAX_SIGS_LEN + VSFtp.MINLEN];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(stream, packet, VSFtp.REPLY_TIMEOUT);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("No VS SIGS from the receiver", e);
+            }
+            VSFtp vspacket = new VSFtp(packet);
+            if (vspacket.getType() != VSFtp.TYPE_SIGS)
+                throw new IOException("Unexpected VS message " + vspacket.asString());
+            if (!sigs.add(vspacket.getData()))
+                return sigs;
+        }
+    }
+}
@@ -5,7 +5,11 @@ import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
 
 public class VSFtp {
     public static final short MINLEN = 4;
@@ -14,22 +18,85 @@ public class VSFtp {
     public static final Integer MAX_LEN = MAX_DATA_LEN + MINLEN;
     public static final short TYPE_BEGIN = 1;
     public static final short TYPE_DATA = 2;
+    /*
+     * END may carry the CRC32C of the whole file (4 bytes), for the
+     * receiver to check what it wrote. BEGIN announces it with
+     * OPT_CHECKSUM; older receivers ignore both.
+     */
     public static final short TYPE_END = 3;
+    /*
+     * RESUME carries a file offset (8 bytes). The receiver answers a BEGIN
+     * with file identity with the offset it holds durably; the sender then
+     * tells all receivers the offset DATA starts at.
+     */
+    public static final short TYPE_RESUME = 4;
+    public static final long REPLY_TIMEOUT = 60000; // ms the sender waits for each RESUME or SIGS
+    /*
+     * Delta transfers, see VSDelta. The receiver answers a BEGIN with
+     * OPT_DELTA with SIGS for the copy it has; COPY (offset and length,
+     * 8 bytes each) then takes bytes from that copy instead of DATA.
+     */
+    public static final short TYPE_SIGS = 5;
+    public static final short TYPE_COPY = 6;
+    /*
+     * Directory sync, see VSManifest. The sender sends the MANIFEST of a
+     * tree; the receiver answers with the NEED for the files it lacks.
+     */
+    public static final short TYPE_MANIFEST = 7;
+    public static final short TYPE_NEED = 8;
+    /*
+     * BEGIN may carry options after the filename, each as "\0key=value".
+     * A BEGIN without options is the plain filename, as before.
+     */
+    public static final String OPT_CHUNK = "chunk"; // DATA payload bytes the sender uses
+    public static final Integer MAX_CHUNK_LEN = 65536;
+    /* File identity, for resuming an interrupted transfer */
+    public static final String OPT_SIZE = "size"; // file length in bytes
+    public static final String OPT_MTIME = "mtime"; // last modified, ms since the epoch
+    public static final String OPT_HASH = "hash"; // SHA-256 of the first and last MiB, in hex
+    /*
+     * With "compress=deflate", every DATA payload starts with a byte saying
+     * how the rest is coded: as it is, or deflated (zlib format) on its own.
+     */
+    public static final String OPT_COMPRESS = "compress";
+    public static final String COMPRESS_DEFLATE = "deflate";
+    public static final byte CHUNK_RAW = 0;
+    public static final byte CHUNK_DEFLATED = 1;
+    public static final String OPT_DELTA = "delta"; // "delta=rsync": send signatures, expect COPY
+    public static final String DELTA_RSYNC = "rsync";
+    /* "tree=1": the filename is a path in a synced tree, replace what is there */
+    public static final String OPT_TREE = "tree";
+    public static final String OPT_CHECKSUM = "checksum"; // "checksum=crc32c": END carries one, check it
+    public static final String CHECKSUM_CRC32C = "crc32c";
 
     private ByteBuffer byteBuffer;
     private int vsType;
     private byte[] vsData;
     private int datalength;
+    private long offset;
+    private long count; // COPY length
+    private long checksum = -1; // END, -1 without one
 
     public VSFtp(DatagramPacket packet) {
         byte[] packetData = packet.getData();
         byteBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
         byteBuffer.order(ByteOrder.BIG_ENDIAN);
         vsType = byteBuffer.getInt();
-        if (vsType == TYPE_BEGIN || vsType == TYPE_DATA) {
+        if (vsType == TYPE_BEGIN || vsType == TYPE_DATA || vsType == TYPE_SIGS
+                || vsType == TYPE_MANIFEST || vsType == TYPE_NEED) {
             vsData = new byte[byteBuffer.remaining()];
             byteBuffer.get(vsData);
             datalength = vsData.length;
+        } else if (vsType == TYPE_RESUME) {
+            offset = byteBuffer.getLong();
+            datalength = 8;
+        } else if (vsType == TYPE_COPY) {
+            offset = byteBuffer.getLong();
+            count = byteBuffer.getLong();
+            datalength = 16;
+        } else if (vsType == TYPE_END && byteBuffer.remaining() >= 4) {
+            checksum = byteBuffer.getInt() & 0xffffffffL;
+            datalength = 4;
         }
     }
 
@@ -52,14 +119,107 @@ public class VSFtp {
         datalength = length;
     }
 
+    public VSFtp(int vstype, long offset) {
+        alloc(vstype, MINLEN + 8);
+        byteBuffer.putLong(offset);
+        this.offset = offset;
+        datalength = 8;
+    }
+
+    public VSFtp(int vstype, long offset, long count) {
+        alloc(vstype, MINLEN + 16);
+        byteBuffer.putLong(offset);
+        byteBuffer.putLong(count);
+        this.offset = offset;
+        this.count = count;
+        datalength = 16;
+    }
+
+    /*
+     * END with the CRC32C of the file
+     */
+    public static VSFtp end(Checksum crc) {
+        VSFtp vsEnd = new VSFtp(TYPE_END);
+        vsEnd.alloc(TYPE_END, MINLEN + 4);
+        vsEnd.byteBuffer.putInt((int) crc.getValue());
+        vsEnd.checksum = crc.getValue();
+        vsEnd.datalength = 4;
+        return vsEnd;
+    }
+
     public VSFtp(int vstype, String filename) {
-        byte[] encodedName = filename.getBytes(StandardCharsets.UTF_8);
+        this(vstype, filename, new String[0]);
+    }
+
+    /*
+     * BEGIN with options, each "key=value"
+     */
+    public VSFtp(int vstype, String filename, String[] options) {
+        StringBuilder begin = new StringBuilder(filename);
+        for (String option : options) {
+            begin.append('\0').append(option);
+        }
+        byte[] encodedName = begin.toString().getBytes(StandardCharsets.UTF_8);
         alloc(vstype, MINLEN + encodedName.length);
         byteBuffer.put(encodedName);
         datalength = encodedName.length;
         vsData = encodedName;
     }
 
+    /*
+     * Just the header of a message, for sending it gathered with a payload
+     * buffer instead of copying the payload into a VSFtp
+     */
+    public static ByteBuffer header(int vstype) {
+        ByteBuffer header = ByteBuffer.allocate(MINLEN);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(vstype);
+        header.flip();
+        return header;
+    }
+
+    /*
+     * Add the first length bytes of a file to crc, for a transfer that
+     * starts further in
+     */
+    public static void checksum(FileChannel channel, long length, Checksum crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("File shorter than " + length);
+            buffer.flip();
+            crc.update(buffer);
+            position += n;
+        }
+    }
+
+    /*
+     * A fresh digest, SHA-256 for file identity and manifests, MD5 for
+     * delta signatures
+     */
+    public static MessageDigest digest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No " + algorithm, e);
+        }
+    }
+
+    /*
+     * Lower case hex of a digest, as it goes in BEGIN and MANIFEST
+     */
+    public static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
     public int getType() {
         return vsType;
     }
@@ -67,20 +227,52 @@ public class VSFtp {
     public String getFilename() throws IOException {
         if (vsType != TYPE_BEGIN)
             throw new IOException("Not BEGIN message");
-        return new String(vsData, StandardCharsets.UTF_8);
+        return new String(vsData, StandardCharsets.UTF_8).split("\0", -1)[0];
+    }
+
+    /*
+     * Value of a BEGIN option, or null if the sender did not give it
+     */
+    public String getOption(String key) throws IOException {
+        if (vsType != TYPE_BEGIN)
+            throw new IOException("Not BEGIN message");
+        String[] fields = new String(vsData, StandardCharsets.UTF_8).split("\0", -1);
+        for (int i = 1; i < fields.length; i++) {
+            if (fields[i].startsWith(key + "="))
+                return fields[i].substring(key.length() + 1);
+        }
+        return null;
     }
 
     public byte[] getData() throws IOException {
-        if (vsType != TYPE_DATA)
+        if (vsType != TYPE_DATA && vsType != TYPE_SIGS && vsType != TYPE_MANIFEST && vsType != TYPE_NEED)
             throw new IOException("Not DATA message");
         return vsData;
     }
 
-    public int length() {
-        int len = MINLEN;
+    public long getOffset() throws IOException {
+        if (vsType != TYPE_RESUME && vsType != TYPE_COPY)
+            throw new IOException("Not RESUME or COPY message");
+        return offset;
+    }
+
+    public long getCount() throws IOException {
+        if (vsType != TYPE_COPY)
+            throw new IOException("Not COPY message");
+        return count;
+    }
+
+    /*
+     * CRC32C of the file, from 0 to 0xffffffff, or -1 if END has none
+     */
+    public long getChecksum() throws IOException {
         if (vsType != TYPE_END)
-            len += datalength;
-        return len;
+            throw new IOException("Not END message");
+        return checksum;
+    }
+
+    public int length() {
+        return MINLEN + datalength;
     }
 
     public byte[] getBytes() {
@@ -104,14 +296,30 @@ public class VSFtp {
             type = "DATA";
         else if (vsType == TYPE_END)
             type = "END";
+        else if (vsType == TYPE_RESUME)
+            type = "RESUME";
+        else if (vsType == TYPE_SIGS)
+            type = "SIGS";
+        else if (vsType == TYPE_COPY)
+            type = "COPY";
+        else if (vsType == TYPE_MANIFEST)
+            type = "MANIFEST";
+        else if (vsType == TYPE_NEED)
+            type = "NEED";
         else
             type = "??";
 
         String data = "";
         if (vsType == TYPE_BEGIN)
             data = " " + getFilename();
-        else if (vsType == TYPE_DATA)
+        else if (vsType == TYPE_DATA || vsType == TYPE_SIGS || vsType == TYPE_MANIFEST || vsType == TYPE_NEED)
             data = " <" + String.valueOf(datalength) + " bytes>";
+        else if (vsType == TYPE_RESUME)
+            data = " " + offset;
+        else if (vsType == TYPE_COPY)
+            data = " " + offset + " +" + count;
+        else if (vsType == TYPE_END && checksum >= 0)
+            data = String.format(" crc32c=%08x", checksum);
 
         return type + data;
     }
@@ -0,0 +1,253 @@
+package ik2215.gudp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/*
+ * Manifest of a directory tree for syncing it: path, size and SHA-256 of
+ * every regular file. Paths are relative to the directory the tree is in,
+ * so they start with the tree's own name, and use '/'. Files are hashed in
+ * parallel on the common fork-join pool.
+ *
+ * MANIFEST payload: one line per file, "size hash path\n". NEED payload:
+ * the indexes of the files the receiver wants, 4 bytes each. For both, a
+ * message without any ends the list.
+ */
+class VSManifest {
+    static final int MAX_MESSAGE_LEN = 60000; // per MANIFEST or NEED message
+    static final long NEED_TIMEOUT = 600000; // ms to wait for NEED, the receiver hashes its tree first
+    static final int HASH_BLOCK = 1 << 20;
+    static final int SPLIT = 8; // files hashed by one fork-join task
+
+    static class Entry {
+        final String path;
+        final long size;
+        String hash;
+        Path file; // sender: where the file is
+
+        Entry(String path, long size, String hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = VSFtp.digest("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BLOCK);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return VSFtp.hex(digest.digest());
+    }
+
+    /*
+     * Hash the files of entries from to to, or find out which of them the
+     * receiver needs, splitting the range over the pool
+     */
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Entry> entries;
+        private final Path base; // receiver: local tree, null on the sender
+        private final boolean[] flagged; // needed, or on the sender not hashed
+        private final int from;
+        private final int to;
+
+        HashTask(List<Entry> entries, Path base, boolean[] needed, int from, int to) {
+            this.entries = entries;
+            this.base = base;
+            this.flagged = needed;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > SPLIT) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(entries, base, flagged, from, middle),
+                        new HashTask(entries, base, flagged, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Entry entry = entries.get(i);
+                try {
+                    if (base == null) {
+                        entry.hash = hash(entry.file);
+                    } else {
+                        flagged[i] = isNeeded(entry, base);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Cannot hash " + entry.path + ": " + e.getMessage());
+                    flagged[i] = true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Sender: the manifest of the tree at root, hashed in parallel.
+     * Files that vanish or cannot be read while hashing are left out.
+     */
+    static ArrayList<Entry> build(Path root) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        Path parent = root.toAbsolutePath().normalize().getParent();
+        try (Stream<Path> walk = Files.walk(root)) {
+            Iterator<Path> iter = walk.sorted().iterator();
+            while (iter.hasNext()) {
+                Path file = iter.next();
+                if (!Files.isRegularFile(file))
+                    continue;
+                Path relative = parent != null ? parent.relativize(file.toAbsolutePath().normalize())
+                        : file.getFileName();
+                String path = relative.toString().replace(java.io.File.separatorChar, '/');
+                if (path.indexOf('\n') >= 0)
+                    continue;
+                Entry entry = new Entry(path, Files.size(file), null);
+                entry.file = file;
+                entries.add(entry);
+            }
+        }
+        boolean[] failed = new boolean[entries.size()];
+        ForkJoinPool.commonPool().invoke(new HashTask(entries, null, failed, 0, entries.size()));
+        ArrayList<Entry> hashed = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (!failed[i])
+                hashed.add(entries.get(i));
+        }
+        return hashed;
+    }
+
+    /*
+     * Receiver: indexes of the manifest entries whose file under base is
+     * missing or different. Sizes are compared first, files of the same
+     * size are hashed in parallel. Unsafe paths are never asked for.
+     */
+    static ArrayList<Integer> needed(List<Entry> manifest, Path base) {
+        boolean[] needed = new boolean[manifest.size()];
+        ForkJoinPool.commonPool().invoke(new HashTask(manifest, base, needed, 0, manifest.size()));
+        ArrayList<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i] && isSafe(manifest.get(i).path))
+                indexes.add(i);
+        }
+        return indexes;
+    }
+
+    private static boolean isNeeded(Entry entry, Path base) throws IOException {
+        if (!isSafe(entry.path))
+            return false;
+        Path local = localPath(base, entry.path);
+        if (!Files.isRegularFile(local) || Files.size(local) != entry.size)
+            return true;
+        return !hash(local).equals(entry.hash);
+    }
+
+    /*
+     * A path from a peer may only name something below the base directory
+     */
+    static boolean isSafe(String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0)
+            return false;
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals(".."))
+                return false;
+        }
+        return !Paths.get(path).isAbsolute();
+    }
+
+    static Path localPath(Path base, String path) {
+        return base.resolve(path.replace('/', java.io.File.separatorChar));
+    }
+
+    /*
+     * MANIFEST payloads for entries, each at most MAX_MESSAGE_LEN bytes
+     */
+    static ArrayList<byte[]> encode(List<Entry> entries) {
+        ArrayList<byte[]> messages = new ArrayList<>();
+        StringBuilder message = new StringBuilder();
+        int length = 0;
+        for (Entry entry : entries) {
+            String line = entry.size + " " + entry.hash + " " + entry.path + "\n";
+            int lineLength = line.getBytes(StandardCharsets.UTF_8).length;
+            if (length > 0 && length + lineLength > MAX_MESSAGE_LEN) {
+                messages.add(message.toString().getBytes(StandardCharsets.UTF_8));
+                message.setLength(0);
+                length = 0;
+            }
+            message.append(line);
+            length += lineLength;
+        }
+        if (length > 0)
+            messages.add(message.toString().getBytes(StandardCharsets.UTF_8));
+        return messages;
+    }
+
+    /*
+     * Add the entries of a MANIFEST payload. Return false for the last one.
+     */
+    static boolean decode(byte[] data, List<Entry> entries) throws IOException {
+        if (data.length == 0)
+            return false;
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length != 3)
+                throw new IOException("Invalid VS manifest line");
+            try {
+                entries.add(new Entry(fields[2], Long.parseLong(fields[0]), fields[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid VS manifest size", e);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * NEED payloads for indexes, each at most MAX_MESSAGE_LEN bytes
+     */
+    static ArrayList<byte[]> encodeNeed(List<Integer> indexes) {
+        ArrayList<byte[]> messages = new ArrayList<>();
+        int perMessage = MAX_MESSAGE_LEN / 4;
+        for (int i = 0; i < indexes.size(); i += perMessage) {
+            int count = Math.min(perMessage, indexes.size() - i);
+            ByteBuffer buffer = ByteBuffer.allocate(4 * count);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            for (int j = 0; j < count; j++) {
+                buffer.putInt(indexes.get(i + j));
+            }
+            messages.add(buffer.array());
+        }
+        return messages;
+    }
+
+    /*
+     * Add the indexes of a NEED payload. Return false for the last one.
+     */
+    static boolean decodeNeed(byte[] data, List<Integer> indexes) throws IOException {
+        if (data.length % 4 != 0)
+            throw new IOException("Invalid VS NEED length " + data.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        while (buffer.hasRemaining()) {
+            indexes.add(buffer.getInt());
+        }
+        return data.length > 0;
+    }
+}
@@ -1,16 +1,402 @@
 package ik2215.gudp;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/*
+ * Writer stage between the VS receive loop and the disk. The receive loop
+ * copies DATA into large blocks and hands full blocks over a bounded queue;
+ * this thread writes them with positional FileChannel writes. A slow disk
+ * then only fills the queue, and the receive loop blocks (leaving GUDP to
+ * push back on the sender) instead of stalling on every chunk. The COPY
+ * ranges of a delta transfer go over the same queue and are read from the
+ * basis here.
+ */
+class VSFtpWriter implements Runnable {
+    public enum SyncPolicy {
+        NONE, END, PERIODIC
+    };
+
+    public static final int BLOCK_LEN = 1 << 20;
+    public static final int QUEUE_LEN = 8;
+    public static final long SYNC_INTERVAL = 1000; // ms between periodic syncs
+    public static final long DRAIN_TIMEOUT = 30000; // ms to finish queued blocks when the JVM exits
+    public static final String CHECKPOINT_SUFFIX = ".resume"; // next to a file that can be resumed
+    public static final String TEMP_SUFFIX = ".part"; // new version of a file, moved over the old one once complete
+
+    /*
+     * One file being written. Errors from the writer thread are kept here
+     * and reported by the receive loop on the next packet for the file, or
+     * at END, which waits for the file to be closed.
+     */
+    static class Target {
+        private final String name;
+        private final FileChannel channel;
+        private final Path checkpoint; // null unless the transfer can be resumed
+        private final String identity;
+        private Path replaces; // moved over this file once complete
+        private CRC32C crc; // of the file so far, null unless END carries one to check
+        private long kept; // bytes from before a resume, added to crc ahead of the first block
+        private long expected = -1; // CRC32C from END, -1 until then
+        private volatile IOException error;
+        private final CountDownLatch closed = new CountDownLatch(1); // last block handled, written or not
+        private long lastSync;
+
+        Target(String localname) throws IOException {
+            this(localname, 0, null);
+        }
+
+        /*
+         * A file written from offset on, keeping the bytes before it. With an
+         * identity, the transfer can be resumed: the file is synced at least
+         * periodically, and each time the offset written so far is recorded
+         * in a checkpoint file next to it, until the file is complete.
+         */
+        Target(String localname, long offset, String identity) throws IOException {
+            name = localname;
+            this.identity = identity;
+            checkpoint = Paths.get(localname + CHECKPOINT_SUFFIX);
+            if (offset == 0) {
+                channel = FileChannel.open(Paths.get(localname), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } else {
+                channel = FileChannel.open(Paths.get(localname), StandardOpenOption.WRITE);
+            }
+            if (identity != null)
+                saveCheckpoint(offset);
+            else
+                Files.deleteIfExists(checkpoint); // belongs to whatever was here before
+            lastSync = System.currentTimeMillis();
+        }
+
+        public void checkError() throws IOException {
+            if (error != null)
+                throw new IOException("Writing " + name + " failed", error);
+        }
+
+        /*
+         * Wait until the writer has handled the last block: written, synced
+         * as the policy asks, and closed. Then report any error.
+         */
+        public void awaitClose() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for writer to close " + name, e);
+            }
+            checkError();
+        }
+
+        boolean isResumable() {
+            return identity != null;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /*
+         * Have the writer compute the CRC32C of the file as it writes it,
+         * starting with the first length bytes already there. Set before the
+         * first block is submitted.
+         */
+        public void checkCRC(long length) {
+            crc = new CRC32C();
+            kept = length;
+        }
+
+        boolean isChecked() {
+            return crc != null;
+        }
+
+        /*
+         * The CRC32C the whole file must have, from END. Set before the last
+         * block is submitted: a file that does not match is removed once
+         * closed, instead of kept.
+         */
+        public void expectCRC(long value) {
+            expected = value;
+        }
+
+        /*
+         * After the last block, whether the file failed its check
+         */
+        boolean isCorrupt() {
+            return crc != null && expected >= 0 && crc.getValue() != expected;
+        }
+
+        long getCRC() {
+            return crc.getValue();
+        }
+
+        /*
+         * Once complete, move the file over localname
+         */
+        public void replaceOnClose(String localname) {
+            replaces = Paths.get(localname);
+        }
+
+        /*
+         * Record that the file holds the first offset bytes durably. The
+         * checkpoint is replaced as a whole, so a crash leaves the old one.
+         */
+        void saveCheckpoint(long offset) throws IOException {
+            Path temp = Paths.get(checkpoint + ".tmp");
+            String text = identity + "\n" + offset + "\n";
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+                out.force(true);
+            }
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /*
+     * The offset up to which localname holds the file with the given
+     * identity, from its checkpoint. -1 if there is nothing to resume.
+     */
+    public static long committed(String localname, String identity) {
+        try {
+            Path checkpoint = Paths.get(localname + CHECKPOINT_SUFFIX);
+            if (!Files.exists(checkpoint))
+                return -1;
+            String[] lines = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).split("\n");
+            if (lines.length < 2 || !lines[0].equals(identity))
+                return -1;
+            long offset = Long.parseLong(lines[1]);
+            return Math.min(offset, Files.size(Paths.get(localname)));
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Block {
+        final Target target;
+        final ByteBuffer data;
+        final long position;
+        final boolean last;
+        final FileChannel source; // a COPY: length bytes from offset in source instead of data
+        final long offset;
+        final long length;
+
+        Block(Target target, ByteBuffer data, long position, boolean last) {
+            this.target = target;
+            this.data = data;
+            this.position = position;
+            this.last = last;
+            this.source = null;
+            this.offset = 0;
+            this.length = 0;
+        }
+
+        Block(Target target, FileChannel source, long offset, long length, long position) {
+            this.target = target;
+            this.data = null;
+            this.position = position;
+            this.last = false;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(QUEUE_LEN);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(QUEUE_LEN);
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private int pending; // blocks submitted and not yet handled
+    private ByteBuffer copyBuffer; // writer thread: COPY goes through here
+
+    public void setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy;
+    }
+
+    /*
+     * An empty block buffer, recycled if one is free
+     */
+    public ByteBuffer allocate() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BLOCK_LEN);
+        buffer.clear();
+        return buffer;
+    }
+
+    /*
+     * Hand a filled block to the writer, to be written at position in the
+     * file. Blocks while the queue is full. With last set, the file is
+     * closed after the block is written.
+     */
+    public void submit(Target target, ByteBuffer data, long position, boolean last) throws IOException {
+        data.flip();
+        enqueue(new Block(target, data, position, last));
+    }
+
+    /*
+     * Hand a COPY to the writer: length bytes from offset in source, to be
+     * written at position in the file. The source is read on the writer
+     * thread, in order with the blocks, and must stay open until the file
+     * is closed.
+     */
+    public void submitCopy(Target target, FileChannel source, long offset, long length, long position)
+            throws IOException {
+        enqueue(new Block(target, source, offset, length, position));
+    }
+
+    private void enqueue(Block block) throws IOException {
+        synchronized (this) {
+            pending++;
+        }
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            done();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted handing block to writer", e);
+        }
+    }
+
+    private synchronized void done() {
+        pending--;
+        notifyAll();
+    }
+
+    /*
+     * Wait until every block submitted so far has been handled, at most
+     * timeout ms. False if some are still queued.
+     */
+    public synchronized boolean drain(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while (pending > 0 && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return pending == 0;
+    }
+
+    private void write(Block block) throws IOException {
+        Target target = block.target;
+        if (target.crc != null && target.kept > 0) {
+            /* the bytes kept from before a resume count too, read here and not on the receive loop */
+            try (FileChannel kept = FileChannel.open(Paths.get(target.name), StandardOpenOption.READ)) {
+                VSFtp.checksum(kept, target.kept, target.crc);
+            }
+            target.kept = 0;
+        }
+        long position = block.source == null ? put(target, block.data, block.position) : copy(block);
+        boolean resumable = target.isResumable();
+        if (block.last && resumable)
+            target.channel.truncate(position); // the old partial file may have been longer
+
+        long now = System.currentTimeMillis();
+        if ((block.last && (syncPolicy != SyncPolicy.NONE || resumable))
+                || ((syncPolicy == SyncPolicy.PERIODIC || resumable) && now - target.lastSync >= SYNC_INTERVAL)) {
+            target.channel.force(false);
+            target.lastSync = now;
+            if (resumable && !block.last)
+                target.saveCheckpoint(position);
+        }
+        if (block.last) {
+            target.channel.close();
+            if (resumable)
+                Files.deleteIfExists(target.checkpoint);
+            if (target.isCorrupt())
+                Files.deleteIfExists(Paths.get(target.name));
+            else if (target.replaces != null)
+                Files.move(Paths.get(target.name), target.replaces, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /*
+     * Write data at position, return where it ends
+     */
+    private static long put(Target target, ByteBuffer data, long position) throws IOException {
+        if (target.crc != null)
+            target.crc.update(data.duplicate());
+        while (data.hasRemaining())
+            position += target.channel.write(data, position);
+        return position;
+    }
+
+    private long copy(Block block) throws IOException {
+        if (copyBuffer == null)
+            copyBuffer = ByteBuffer.allocateDirect(BLOCK_LEN);
+        long offset = block.offset;
+        long end = block.offset + block.length;
+        long position = block.position;
+        while (offset < end) {
+            copyBuffer.clear();
+            copyBuffer.limit((int) Math.min(copyBuffer.capacity(), end - offset));
+            int n = block.source.read(copyBuffer, offset);
+            if (n < 0)
+                throw new IOException("VS COPY beyond the end of the basis");
+            offset += n;
+            copyBuffer.flip();
+            position = put(block.target, copyBuffer, position);
+        }
+        return position;
+    }
+
+    public void run() {
+        while (true) {
+            Block block;
+            try {
+                block = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Target target = block.target;
+            try {
+                /* After an error the rest of the file is dropped */
+                if (target.error == null)
+                    write(block);
+            } catch (IOException e) {
+                target.error = e;
+                System.err.println("Exception in VS writer");
+                e.printStackTrace();
+                try {
+                    target.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (block.last)
+                target.closed.countDown();
+            if (block.data != null)
+                free.offer(block.data);
+            done();
+        }
+    }
+}
+
+/*
+ * One transfer: the files a sender sends on one GUDP stream, one after the
+ * other. Stream 0 is the plain one-file-at-a-time transfer.
+ */
 class ReceiveContext {
     private InetSocketAddress sockaddr;
+    private int stream;
+    private GUDPSocket gUdpSocket; // for answering a BEGIN that asks to resume
     private String basePath = "./Received";
 
     private enum State {
@@ -18,17 +404,26 @@ class ReceiveContext {
     };
 
     private State state;
-    private OutputStream outputStream;
+    private VSFtpWriter writer;
+    private VSFtpWriter.Target target;
+    private ByteBuffer block; // DATA not yet handed to the writer
+    private long position; // file offset of block
     private boolean overwrite = false;
     private boolean debug = false;
+    private Inflater inflater; // DATA is compressed, see VSFtp.OPT_COMPRESS
+    private FileChannel basis; // the copy COPY takes from in a delta transfer, see VSDelta
+    private ArrayList<VSManifest.Entry> manifest; // of a tree being synced, until complete
 
-    ReceiveContext(InetSocketAddress sa) {
+    ReceiveContext(GUDPSocket socket, InetSocketAddress sa, int st, VSFtpWriter w) {
+        gUdpSocket = socket;
         sockaddr = sa;
+        stream = st;
+        writer = w;
         state = State.NONE;
     }
 
-    public boolean hasSocketAddress(InetSocketAddress sa) {
-        return sockaddr.equals(sa);
+    public boolean hasTransfer(InetSocketAddress sa, int st) {
+        return sockaddr.equals(sa) && stream == st;
     }
 
     public void setState(State newstate) {
@@ -47,6 +442,10 @@ class ReceiveContext {
         overwrite = ow;
     }
 
+    public void setBasePath(String path) {
+        basePath = path;
+    }
+
     private String getLocalFilename(String filename) {
         System.err.println("Filename: " + filename);
         String localname = basePath + File.separator + filename;
@@ -64,6 +463,34 @@ class ReceiveContext {
         return localname;
     }
 
+    /*
+     * The partial copy of the file with identity from an earlier transfer,
+     * under the name getLocalFilename() gave it then, or null if there is none
+     */
+    private String getResumable(String filename, String identity) {
+        String localname = basePath + File.separator + filename;
+        Integer version = 1;
+        while (new File(localname).exists()) {
+            if (VSFtpWriter.committed(localname, identity) >= 0)
+                return localname;
+            localname = localname + '-' + version.toString();
+            version += 1;
+        }
+        return null;
+    }
+
+    /*
+     * Identity of the file in a BEGIN, null if the sender did not ask to resume
+     */
+    private static String getIdentity(VSFtp vspacket) throws IOException {
+        String size = vspacket.getOption(VSFtp.OPT_SIZE);
+        String mtime = vspacket.getOption(VSFtp.OPT_MTIME);
+        String hash = vspacket.getOption(VSFtp.OPT_HASH);
+        if (size == null || mtime == null || hash == null)
+            return null;
+        return size + " " + mtime + " " + hash;
+    }
+
     public void processPacket(DatagramPacket packet) throws IOException {
         VSFtp vspacket = new VSFtp(packet);
 
@@ -76,21 +503,148 @@ class ReceiveContext {
         if (vspacket.getType() == VSFtp.TYPE_BEGIN) {
             if ((state == State.NONE) || (state == State.CLOSED)) {
                 String filename = vspacket.getFilename();
-                String localname = getLocalFilename(filename);
-                outputStream = new FileOutputStream(localname);
+                boolean tree = "1".equals(vspacket.getOption(VSFtp.OPT_TREE));
+                if (tree) {
+                    /* a file of a synced tree goes to its place in the tree, see VSManifest */
+                    if (!VSManifest.isSafe(filename))
+                        throw new IOException("Unsafe VS path " + filename);
+                    Files.createDirectories(VSManifest.localPath(Paths.get(basePath), filename).getParent());
+                }
+                /* only checked: the receive buffer is shared and already fits the largest chunk */
+                String chunkOption = vspacket.getOption(VSFtp.OPT_CHUNK);
+                if (chunkOption != null) {
+                    int size = Integer.parseInt(chunkOption);
+                    if (size <= 0 || size > VSFtp.MAX_CHUNK_LEN)
+                        throw new IOException("Invalid VS chunk size " + size);
+                }
+                String compressOption = vspacket.getOption(VSFtp.OPT_COMPRESS);
+                if (compressOption != null && !compressOption.equals(VSFtp.COMPRESS_DEFLATE))
+                    throw new IOException("Unsupported VS compression " + compressOption);
+                inflater = compressOption != null ? new Inflater() : null;
+                String checksumOption = vspacket.getOption(VSFtp.OPT_CHECKSUM);
+                if (checksumOption != null && !checksumOption.equals(VSFtp.CHECKSUM_CRC32C))
+                    throw new IOException("Unsupported VS checksum " + checksumOption);
+                String deltaOption = vspacket.getOption(VSFtp.OPT_DELTA);
+                if (deltaOption != null && !deltaOption.equals(VSFtp.DELTA_RSYNC))
+                    throw new IOException("Unsupported VS delta " + deltaOption);
+                Path basisPath = Paths.get(basePath, filename);
+                basis = null;
+                if (deltaOption != null && Files.isRegularFile(basisPath))
+                    basis = FileChannel.open(basisPath, StandardOpenOption.READ);
+                String identity = getIdentity(vspacket);
+                String localname = null;
+                long offset = -1;
+                if (tree) {
+                    /* a synced tree is kept in step with the sender's: replace, never version */
+                    localname = VSManifest.localPath(Paths.get(basePath), filename).toString();
+                } else if (identity != null) {
+                    /* continue an earlier partial copy of the same file, if there is one */
+                    localname = getResumable(filename, identity);
+                    if (localname != null)
+                        offset = VSFtpWriter.committed(localname, identity);
+                }
+                if (localname == null) {
+                    // the next delta is against this version
+                    localname = basis != null ? basisPath.toString() : getLocalFilename(filename);
+                }
+                if (tree || (basis != null && offset < 0)) {
+                    /* replacing a file: keep it until the new version is complete */
+                    String temp = localname + VSFtpWriter.TEMP_SUFFIX;
+                    if (tree && identity != null)
+                        offset = VSFtpWriter.committed(temp, identity);
+                    target = new VSFtpWriter.Target(temp, Math.max(offset, 0), tree ? identity : null);
+                    target.replaceOnClose(localname);
+                } else {
+                    target = new VSFtpWriter.Target(localname, Math.max(offset, 0), identity);
+                }
+                if (offset >= 0)
+                    System.err.println("Resume: " + target.getName() + " at " + offset);
+                offset = Math.max(offset, 0);
+                if (checksumOption != null)
+                    target.checkCRC(0); // RESUME may add bytes kept from before
+                if (deltaOption != null)
+                    startSignatures(basis);
+                block = writer.allocate();
+                position = offset;
                 state = State.OPEN;
+                if (identity != null) {
+                    VSFtp vsResume = new VSFtp(VSFtp.TYPE_RESUME, offset);
+                    gUdpSocket.send(vsResume.getPacket(sockaddr), stream);
+                    /* a reply only: let the session go, or the peers it leaves behind fill the end point limit */
+                    gUdpSocket.finish(sockaddr);
+                }
             } else
                 throw new IOException("VS receiver already active");
         } else if (vspacket.getType() == VSFtp.TYPE_DATA) {
             if (state == State.OPEN) {
+                target.checkError();
                 byte[] data = vspacket.getData();
-                outputStream.write(data);
+                if (inflater == null)
+                    write(data, 0, data.length);
+                else if (data.length > 0 && data[0] == VSFtp.CHUNK_RAW)
+                    write(data, 1, data.length - 1);
+                else if (data.length > 0 && data[0] == VSFtp.CHUNK_DEFLATED)
+                    inflate(data, 1, data.length - 1);
+                else
+                    throw new IOException("Invalid VS chunk coding");
             } else
                 throw new IOException("VS receiver not active");
+        } else if (vspacket.getType() == VSFtp.TYPE_COPY) {
+            if (state == State.OPEN && basis != null) {
+                target.checkError();
+                copy(vspacket.getOffset(), vspacket.getCount());
+            } else
+                throw new IOException("Unexpected VS COPY");
+        } else if (vspacket.getType() == VSFtp.TYPE_RESUME) {
+            /* where the sender starts, at most the offset offered, before any DATA */
+            long offset = vspacket.getOffset();
+            if (state == State.OPEN && target.isResumable() && block.position() == 0 && offset >= 0
+                    && offset <= position) {
+                position = offset;
+                /* the bytes kept from before count too, the writer adds them */
+                if (target.isChecked())
+                    target.checkCRC(offset);
+            } else
+                throw new IOException("Unexpected VS RESUME " + offset);
+        } else if (vspacket.getType() == VSFtp.TYPE_MANIFEST) {
+            if (state != State.OPEN) {
+                if (manifest == null)
+                    manifest = new ArrayList<VSManifest.Entry>();
+                if (!VSManifest.decode(vspacket.getData(), manifest)) {
+                    startNeed(manifest);
+                    manifest = null;
+                }
+            } else
+                throw new IOException("Unexpected VS MANIFEST");
         } else if (vspacket.getType() == VSFtp.TYPE_END) {
             if (state == State.OPEN) {
-                outputStream.close();
-                state = State.CLOSED;
+                target.checkError();
+                long expected = vspacket.getChecksum();
+                if (expected >= 0)
+                    target.expectCRC(expected);
+                writer.submit(target, block, position, true);
+                block = null;
+                try {
+                    /* the transfer is only complete once the last block is on disk, as the policy asks */
+                    target.awaitClose();
+                } finally {
+                    if (inflater != null) {
+                        inflater.end();
+                        inflater = null;
+                    }
+                    if (basis != null) {
+                        /* the writer is done with it, the file is closed */
+                        basis.close();
+                        basis = null;
+                    }
+                    state = State.CLOSED;
+                }
+                /* checked by the writer, as it wrote the file */
+                if (target.isCorrupt())
+                    throw new IOException(String.format("VS checksum mismatch, %s removed: crc32c %08x, expected %08x",
+                            target.getName(), target.getCRC(), expected));
+                if (debug && target.isChecked() && expected >= 0)
+                    System.err.println("Verified: " + target.getName());
             } else
                 throw new IOException("VS receiver not active");
         } else {
@@ -101,6 +655,112 @@ class ReceiveContext {
     public boolean isClosed() {
         return state == State.CLOSED;
     }
+
+    /*
+     * Hand the block to the writer once it is full
+     */
+    private void flushFullBlock() throws IOException {
+        if (!block.hasRemaining()) {
+            long start = position;
+            position += block.position();
+            writer.submit(target, block, start, false);
+            block = writer.allocate();
+        }
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(end - offset, block.remaining());
+            block.put(data, offset, n);
+            offset += n;
+            flushFullBlock();
+        }
+    }
+
+    /*
+     * Append length bytes from offset in the basis, for a COPY. The writer
+     * reads the basis, not the receive loop: the DATA so far goes first, in
+     * a block of its own.
+     */
+    private void copy(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0)
+            throw new IOException("Invalid VS COPY " + offset + " " + length);
+        if (block.position() > 0) {
+            long start = position;
+            position += block.position();
+            writer.submit(target, block, start, false);
+            block = writer.allocate();
+        }
+        writer.submitCopy(target, basis, offset, length, position);
+        position += length;
+    }
+
+    /*
+     * Send the signatures of basis (null if there is none) to the sender,
+     * from a thread of its own: hashing a large file must not hold up the
+     * receive loop
+     */
+    private void startSignatures(final FileChannel basis) {
+        Thread signer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    VSDelta.sendSignatures(gUdpSocket, sockaddr, stream, basis);
+                } catch (IOException e) {
+                    System.err.println("Exception sending VS signatures");
+                    e.printStackTrace();
+                }
+            }
+        }, "VSFTP Signatures");
+        signer.setDaemon(true);
+        signer.start();
+    }
+
+    /*
+     * Compare the manifest with the tree here and answer with the NEED for
+     * what is missing or different. Like the signatures, from a thread of
+     * its own, as this hashes every file that might be unchanged.
+     */
+    private void startNeed(final ArrayList<VSManifest.Entry> manifest) {
+        Thread comparer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ArrayList<Integer> needed = VSManifest.needed(manifest, Paths.get(basePath));
+                    System.err.println("Manifest: " + manifest.size() + " files, " + needed.size() + " needed");
+                    for (byte[] data : VSManifest.encodeNeed(needed)) {
+                        VSFtp vsNeed = new VSFtp(VSFtp.TYPE_NEED, data, data.length);
+                        gUdpSocket.send(vsNeed.getPacket(sockaddr), stream);
+                    }
+                    VSFtp vsEnd = new VSFtp(VSFtp.TYPE_NEED, new byte[0], 0); // no indexes: the end
+                    gUdpSocket.send(vsEnd.getPacket(sockaddr), stream);
+                    gUdpSocket.finish(sockaddr);
+                } catch (IOException e) {
+                    System.err.println("Exception answering VS manifest");
+                    e.printStackTrace();
+                }
+            }
+        }, "VSFTP Manifest");
+        comparer.setDaemon(true);
+        comparer.start();
+    }
+
+    /*
+     * Decompress one deflated chunk straight into the blocks for the writer
+     */
+    private void inflate(byte[] data, int offset, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(block);
+                flushFullBlock();
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated compressed VS chunk");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed VS chunk", e);
+        }
+    }
 }
 
 class VSFtpReceiver implements Runnable {
@@ -109,21 +769,24 @@ class VSFtpReceiver implements Runnable {
     private String[] fileNames;
     private boolean debug = false;
     private boolean overwrite = false;
+    private String basePath = "./Received"; // where received files go
+    private VSFtpWriter writer = new VSFtpWriter();
 
     VSFtpReceiver(GUDPSocket socket) {
         gUdpSocket = socket;
     }
 
-    public ReceiveContext getContext(DatagramPacket packet) {
+    public ReceiveContext getContext(DatagramPacket packet, int stream) {
         InetSocketAddress sockaddr = (InetSocketAddress) packet.getSocketAddress();
         for (ReceiveContext context : receiveContexts) {
-            if (context.hasSocketAddress(sockaddr))
+            if (context.hasTransfer(sockaddr, stream))
                 return context;
         }
         /* Not found */
-        ReceiveContext context = new ReceiveContext(sockaddr);
+        ReceiveContext context = new ReceiveContext(gUdpSocket, sockaddr, stream, writer);
         context.setDebug(debug);
         context.setOverwrite(overwrite);
+        context.setBasePath(basePath);
         receiveContexts.add(context);
         return context;
     }
@@ -140,13 +803,35 @@ class VSFtpReceiver implements Runnable {
         return old;
     }
 
+    public void setSyncPolicy(VSFtpWriter.SyncPolicy policy) {
+        writer.setSyncPolicy(policy);
+    }
+
+    public void setBasePath(String path) {
+        basePath = path;
+    }
+
     public void run() {
+        Thread writerThread = new Thread(writer, "VSFTP Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        /* the writer is a daemon: let it finish what is queued before the JVM goes */
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (!writer.drain(VSFtpWriter.DRAIN_TIMEOUT))
+                        System.err.println("VS writer did not finish, blocks lost");
+                } catch (InterruptedException e) {
+                }
+            }
+        }, "VSFTP Drain"));
+        /* one buffer for all packets, VSFtp copies out what it keeps; it fits a manifest */
+        byte[] buf = new byte[VSFtp.MAX_CHUNK_LEN + VSFtp.MINLEN];
         while (true) {
             try {
-                byte[] buf = new byte[VSFtp.MAX_LEN];
-                DatagramPacket packet = new DatagramPacket(buf, VSFtp.MAX_LEN);
-                gUdpSocket.receive(packet);
-                ReceiveContext context = getContext(packet);
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                int stream = gUdpSocket.receiveStream(packet);
+                ReceiveContext context = getContext(packet, stream);
                 context.processPacket(packet);
             } catch (Exception e) {
                 System.err.println("Exception in VS receiver");
@@ -159,11 +844,12 @@ class VSFtpReceiver implements Runnable {
 public class VSRecv {
     static boolean debug_flag = false;
     static boolean overwrite_flag = false;
+    static VSFtpWriter.SyncPolicy sync_policy = VSFtpWriter.SyncPolicy.NONE;
     static int port;
     static GUDPSocket gUdpSocket;
 
     private static void usage() {
-        System.err.print("Usage: VSRecv [-d] [-o] port\n");
+        System.err.print("Usage: VSRecv [-d] [-o] [-f none|end|periodic] port\n");
         System.exit(1);
     }
 
@@ -175,6 +861,13 @@ public class VSRecv {
                 debug_flag = true;
             } else if (args[index].equals("-o")) {
                 overwrite_flag = true;
+            } else if (args[index].equals("-f") && index + 1 < args.length) {
+                index++;
+                try {
+                    sync_policy = VSFtpWriter.SyncPolicy.valueOf(args[index].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
             } else
                 usage();
             index++;
@@ -194,6 +887,7 @@ public class VSRecv {
         VSFtpReceiver vsReceiver = new VSFtpReceiver(gUdpSocket);
         vsReceiver.setOverwrite(overwrite_flag);
         vsReceiver.setDebug(debug_flag);
+        vsReceiver.setSyncPolicy(sync_policy);
         Thread receiver = new Thread(vsReceiver, "VSFTP Receiver");
         receiver.start();
     }
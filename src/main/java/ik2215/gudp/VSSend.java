@@ -1,18 +1,57 @@
 package ik2215.gudp;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 
 class VSFtpSender implements Runnable {
+    /* the file is mapped this much at a time, or read in blocks if it cannot be mapped */
+    static final int MAP_LEN = 64 << 20;
+    static final int BLOCK_LEN = 1 << 20;
+    static final int MAX_EXPAND = 16; // file bytes in one compressed DATA, in chunks
+    static final int TREE_PARALLEL = 4; // files in flight when syncing a tree without setParallel()
     private GUDPSocket gUdpSocket;
     private ArrayList<InetSocketAddress> destSocketAddresses;
     private String[] fileNames;
     private boolean debug = true;
+    private boolean negotiateChunk = false;
+    private int parallel = 0; // files in flight, each on its own stream; 0 sends one at a time on stream 0
+    private boolean resume = false;
+    private boolean compress = false;
+    private boolean delta = false;
+    private boolean checksum = false;
+    private ArrayList<Transfer> transfers = new ArrayList<Transfer>();
+
+    /*
+     * A file to send: where it is here, and the name in its BEGIN
+     */
+    private static class Transfer {
+        final String path;
+        final String name;
+        final boolean tree; // part of a synced tree, see VSManifest
+
+        Transfer(String path, String name, boolean tree) {
+            this.path = path;
+            this.name = name;
+            this.tree = tree;
+        }
+    }
 
     VSFtpSender(GUDPSocket socket, ArrayList<InetSocketAddress> destinations, String[] files) {
         gUdpSocket = socket;
@@ -20,26 +59,509 @@ class VSFtpSender implements Runnable {
         fileNames = files;
     }
 
-    private void sendAll(VSFtp vsPacket) throws IOException {
+    private void sendAll(VSFtp vsPacket, int stream) throws IOException {
+        sendAll(stream, ByteBuffer.wrap(vsPacket.getBytes()));
+    }
+
+    /*
+     * Send one message, the remaining bytes of message in order, to all
+     * destinations. With more than one, the message is shared between their
+     * send queues instead of copied for each.
+     */
+    private void sendAll(int stream, ByteBuffer... message) throws IOException {
+        if (destSocketAddresses.size() == 1) {
+            gUdpSocket.send(destSocketAddresses.get(0), stream, message);
+            return;
+        }
+        SharedPayload payload = new SharedPayload(message);
+        gUdpSocket.send(destSocketAddresses, payload, stream, GUDPSocket.priority.BULK, 0);
+        payload.release();
+    }
+
+    public void setNegotiateChunk(boolean value) {
+        negotiateChunk = value;
+    }
+
+    /*
+     * Identify each file in its BEGIN, so that receivers holding part of it
+     * from an interrupted transfer can have the sender continue from there
+     */
+    public void setResume(boolean value) {
+        if (value && delta)
+            throw new IllegalArgumentException("A delta transfer cannot also resume");
+        resume = value;
+    }
+
+    /*
+     * Deflate each chunk that gets smaller that way, announced in BEGIN
+     */
+    public void setCompress(boolean value) {
+        compress = value;
+    }
+
+    /*
+     * Send only what the receiver's copy of each file lacks, see VSDelta.
+     * There must be one destination only. The new version replaces that
+     * copy, so that it is the basis of the next delta transfer.
+     */
+    public void setDelta(boolean value) {
+        if (value && destSocketAddresses.size() != 1)
+            throw new IllegalArgumentException("Delta transfers need a single destination");
+        if (value && resume)
+            throw new IllegalArgumentException("A delta transfer cannot also resume");
+        delta = value;
+    }
+
+    /*
+     * Carry the CRC32C of each file in its END, computed while sending, for
+     * receivers to check the file they wrote
+     */
+    public void setChecksum(boolean value) {
+        checksum = value;
+    }
+
+    /*
+     * Send up to files at a time, file number n of them on GUDP stream n, in
+     * one GUDP session. Zero sends the files one after the other, each in a
+     * session of its own.
+     */
+    public void setParallel(int files) {
+        if (files < 0 || files > GUDPPacket.MAX_STREAM) {
+            throw new IllegalArgumentException("Parallel files must be 0 to " + GUDPPacket.MAX_STREAM);
+        }
+        parallel = files;
+    }
+
+    /*
+     * Largest DATA payload that still fits in one GUDP packet to every
+     * destination, as far as the transport knows right now
+     */
+    private int chunkSize() {
+        int chunk = VSFtp.MAX_CHUNK_LEN;
         for (InetSocketAddress sockaddr : destSocketAddresses) {
-            DatagramPacket datagramPacket = vsPacket.getPacket(sockaddr);
-            gUdpSocket.send(datagramPacket);
+            chunk = Math.min(chunk, gUdpSocket.getMaxSegment(sockaddr) - VSFtp.MINLEN);
+        }
+        return chunk;
+    }
+
+    /*
+     * Send a DATA message with chunk as payload to all destinations. The
+     * chunk goes to GUDP as it is, mapped file pages are copied only into
+     * the GUDP packets.
+     */
+    private void sendAllData(ByteBuffer chunk, int stream) throws IOException {
+        sendAll(stream, VSFtp.header(VSFtp.TYPE_DATA), chunk);
+    }
+
+    /*
+     * DATA payload with data deflated on its own, after the coding byte, or
+     * null if that does not fit in limit bytes
+     */
+    private ByteBuffer deflate(ByteBuffer data, int limit, Deflater deflater) {
+        // a new buffer each time, queued packets may still refer to the last one
+        ByteBuffer compressed = ByteBuffer.allocate(limit);
+        compressed.put(VSFtp.CHUNK_DEFLATED);
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+        deflater.deflate(compressed);
+        if (!deflater.finished())
+            return null;
+        compressed.flip();
+        return compressed;
+    }
+
+    /*
+     * Send the next DATA of a compressed transfer from block. It carries as
+     * many bytes as still fit in a chunk once deflated: expand chunks' worth,
+     * adapted to how well the file compresses so far. What does not shrink
+     * at all goes as it is, piece bytes after the coding byte. Returns the
+     * new expand.
+     */
+    private int sendAllCompressed(ByteBuffer block, int piece, int expand, int stream, Deflater deflater)
+            throws IOException {
+        while (true) {
+            ByteBuffer data = block.slice();
+            data.limit((int) Math.min(data.remaining(), (long) expand * piece));
+            ByteBuffer compressed = deflate(data, piece + 1, deflater);
+            if (compressed == null && data.remaining() > piece) {
+                expand = Math.max(1, expand / 2);
+                continue;
+            }
+            if (compressed != null) {
+                sendAll(stream, VSFtp.header(VSFtp.TYPE_DATA), compressed);
+                if (compressed.remaining() <= piece / 2)
+                    expand = Math.min(expand * 2, MAX_EXPAND);
+            } else {
+                ByteBuffer raw = ByteBuffer.wrap(new byte[] { VSFtp.CHUNK_RAW });
+                sendAll(stream, VSFtp.header(VSFtp.TYPE_DATA), raw, data);
+            }
+            block.position(block.position() + data.remaining());
+            return expand;
+        }
+    }
+
+    /*
+     * Send all of block as DATA, piece bytes at a time or compressed with
+     * deflater if there is one, and add it to crc if there is one. Returns
+     * the new expand, see sendAllCompressed().
+     */
+    private int sendData(ByteBuffer block, int piece, int expand, int stream, Deflater deflater, Checksum crc)
+            throws IOException {
+        if (crc != null)
+            crc.update(block.duplicate());
+        while (block.hasRemaining()) {
+            if (deflater != null) {
+                expand = sendAllCompressed(block, piece, expand, stream, deflater);
+                continue;
+            }
+            ByteBuffer data = block.slice();
+            data.limit(Math.min(piece, data.remaining()));
+            sendAllData(data, stream);
+            block.position(block.position() + data.remaining());
+        }
+        return expand;
+    }
+
+    /*
+     * Delta transfer: look for the receiver's blocks at every offset of the
+     * file, with the rolling checksum, and send COPY for each run of them and
+     * DATA for the bytes in between. Returns where the rest of the file,
+     * after the last match, starts; that part goes as usual.
+     */
+    private long sendDelta(FileChannel channel, VSDelta.Signatures sigs, int piece, int stream, Deflater deflater,
+            Checksum crc) throws IOException {
+        long size = channel.size();
+        int blockSize = sigs.getBlockSize();
+        MessageDigest md5 = VSDelta.md5();
+        VSDelta.Rolling rolling = new VSDelta.Rolling();
+        long literal = 0; // first byte not sent yet
+        long copyOffset = 0; // run of basis blocks not sent yet
+        long copyLength = 0;
+        long base = 0; // file offset of window
+        ByteBuffer window = null;
+        boolean rolled = false;
+        int expand = 1;
+        long position = 0;
+        while (sigs.count() > 0 && position + blockSize <= size) {
+            if (window == null || position + blockSize > base + window.limit()) {
+                // the window always starts at the bytes not sent yet, and maps up to MAP_LEN
+                base = literal;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, MAP_LEN));
+                rolled = false;
+            }
+            int at = (int) (position - base);
+            if (!rolled) {
+                rolling.init(window, at, blockSize);
+                rolled = true;
+            }
+            int index = sigs.find(rolling.value(), window, at, md5);
+            if (index >= 0) {
+                if (position > literal) {
+                    sendCopy(copyOffset, copyLength, stream);
+                    copyLength = 0;
+                    expand = sendData(slice(window, literal - base, position - literal), piece, expand, stream,
+                            deflater, crc);
+                }
+                if (crc != null)
+                    crc.update(slice(window, at, blockSize)); // the receiver copies it
+                long offset = (long) index * blockSize;
+                if (copyLength > 0 && copyOffset + copyLength != offset) {
+                    sendCopy(copyOffset, copyLength, stream);
+                    copyLength = 0;
+                }
+                if (copyLength == 0)
+                    copyOffset = offset;
+                copyLength += blockSize;
+                position += blockSize;
+                literal = position;
+                rolled = false;
+                continue;
+            }
+            if (at + blockSize < window.limit())
+                rolling.roll(window.get(at), window.get(at + blockSize));
+            else
+                rolled = false;
+            position++;
+            if (position - literal >= BLOCK_LEN) {
+                sendCopy(copyOffset, copyLength, stream);
+                copyLength = 0;
+                expand = sendData(slice(window, literal - base, position - literal), piece, expand, stream,
+                        deflater, crc);
+                literal = position;
+            }
         }
+        sendCopy(copyOffset, copyLength, stream);
+        return literal;
     }
 
-    private void sendFile(String fileName) throws IOException {
-        FileInputStream inputStream = new FileInputStream(fileName);
-        VSFtp vsBegin = new VSFtp(VSFtp.TYPE_BEGIN, fileName);
-        sendAll(vsBegin);
-        byte[] fileBuffer = new byte[VSFtp.MAX_DATA_LEN];
-        int byteRead;
-        while ((byteRead = inputStream.read(fileBuffer, 0, VSFtp.MAX_DATA_LEN)) != -1) {
-            VSFtp vsData = new VSFtp(VSFtp.TYPE_DATA, fileBuffer, byteRead);
-            sendAll(vsData);
+    private static ByteBuffer slice(ByteBuffer buffer, long from, long length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) (from + length)).position((int) from);
+        return slice.slice();
+    }
+
+    private void sendCopy(long offset, long length, int stream) throws IOException {
+        if (length > 0)
+            sendAll(new VSFtp(VSFtp.TYPE_COPY, offset, length), stream);
+    }
+
+    /*
+     * Next block of the file from position on: a mapped region while the file
+     * is that long, otherwise whatever a read into readBuffer returns, for
+     * files that cannot be mapped or grow while being sent. Null at the end.
+     * A returned readBuffer must not be read into again while queued packets
+     * still refer to it.
+     */
+    private ByteBuffer nextBlock(FileChannel channel, long position, int chunk, ByteBuffer readBuffer)
+            throws IOException {
+        long size = channel.size();
+        if (position < size) {
+            // a whole number of chunks, so that only the last chunk of the file is short
+            long length = Math.min(size - position, (long) (MAP_LEN / chunk) * chunk);
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. a pipe or device, or no address space left: read it instead
+            }
+        }
+        readBuffer.clear();
+        if (channel.read(readBuffer, position) <= 0)
+            return null;
+        readBuffer.flip();
+        return readBuffer;
+    }
+
+    /*
+     * BEGIN options identifying the file: size, mtime and a hash. Hashing
+     * the whole file would read it twice, so the hash covers the first and
+     * the last MiB only; with the same size and mtime, that is enough to
+     * notice a file that was rewritten.
+     */
+    private String[] identity(String fileName, FileChannel channel) throws IOException {
+        long size = channel.size();
+        long mtime = Files.getLastModifiedTime(Paths.get(fileName)).toMillis();
+        MessageDigest digest = VSFtp.digest("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_LEN);
+        long[] starts = { 0, Math.max(BLOCK_LEN, size - BLOCK_LEN) };
+        for (long start : starts) {
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0)
+                ;
+            buffer.flip();
+            digest.update(buffer);
+        }
+        return new String[] { VSFtp.OPT_SIZE + "=" + size, VSFtp.OPT_MTIME + "=" + mtime,
+                VSFtp.OPT_HASH + "=" + VSFtp.hex(digest.digest()) };
+    }
+
+    /*
+     * Wait until every destination has answered the BEGIN with the offset
+     * it already holds, and return the smallest. A destination that does
+     * not answer within REPLY_TIMEOUT fails the transfer.
+     */
+    private long awaitResume(int stream) throws IOException {
+        ArrayList<InetSocketAddress> waiting = new ArrayList<InetSocketAddress>(destSocketAddresses);
+        long offset = Long.MAX_VALUE;
+        byte[] buf = new byte[VSFtp.MAX_LEN];
+        while (!waiting.isEmpty()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                gUdpSocket.receive(stream, packet, VSFtp.REPLY_TIMEOUT);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("No VS RESUME from " + waiting, e);
+            }
+            VSFtp vspacket = new VSFtp(packet);
+            if (vspacket.getType() != VSFtp.TYPE_RESUME)
+                throw new IOException("Unexpected VS message " + vspacket.asString());
+            if (waiting.remove(packet.getSocketAddress()))
+                offset = Math.min(offset, vspacket.getOffset());
+        }
+        return offset;
+    }
+
+    /*
+     * Send the manifest of the tree at dir to all destinations and queue the
+     * files any of them needs. Each file goes to every destination, those
+     * that had it already just get it again.
+     */
+    private void syncTree(String dir, ArrayList<VSManifest.Entry> manifest) throws IOException {
+        for (byte[] data : VSManifest.encode(manifest)) {
+            sendAll(new VSFtp(VSFtp.TYPE_MANIFEST, data, data.length), 0);
+        }
+        sendAll(new VSFtp(VSFtp.TYPE_MANIFEST, new byte[0], 0), 0); // no entries: the end
+        TreeSet<Integer> needed = awaitNeed(0);
+        for (int index : needed) {
+            if (index < 0 || index >= manifest.size())
+                throw new IOException("Invalid VS NEED index " + index);
+            VSManifest.Entry entry = manifest.get(index);
+            transfers.add(new Transfer(entry.file.toString(), entry.path, true));
+        }
+        if (debug)
+            System.err.println("Sync " + dir + ": " + needed.size() + " of " + manifest.size() + " files");
+    }
+
+    /*
+     * The manifest of each tree to sync, by directory, built before anything
+     * is sent. Roots of the same name in different places would put their
+     * files in the same place at the receiver: a path in two trees is
+     * refused.
+     */
+    private HashMap<String, ArrayList<VSManifest.Entry>> manifests() throws IOException {
+        HashMap<String, ArrayList<VSManifest.Entry>> manifests = new HashMap<String, ArrayList<VSManifest.Entry>>();
+        HashMap<String, String> roots = new HashMap<String, String>(); // path in a manifest -> its tree
+        for (String fileName : this.fileNames) {
+            if (!Files.isDirectory(Paths.get(fileName)))
+                continue;
+            ArrayList<VSManifest.Entry> manifest = VSManifest.build(Paths.get(fileName));
+            for (VSManifest.Entry entry : manifest) {
+                String other = roots.putIfAbsent(entry.path, fileName);
+                if (other != null)
+                    throw new IOException("VS path " + entry.path + " is in both " + other + " and " + fileName);
+            }
+            manifests.put(fileName, manifest);
+        }
+        return manifests;
+    }
+
+    /*
+     * Wait until every destination has sent its NEED, and return all the
+     * indexes asked for. Fails after NEED_TIMEOUT without one.
+     */
+    private TreeSet<Integer> awaitNeed(int stream) throws IOException {
+        ArrayList<InetSocketAddress> waiting = new ArrayList<InetSocketAddress>(destSocketAddresses);
+        TreeSet<Integer> needed = new TreeSet<Integer>();
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        byte[] buf = new byte[VSManifest.MAX_MESSAGE_LEN + VSFtp.MINLEN];
+        while (!waiting.isEmpty()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                gUdpSocket.receive(stream, packet, VSManifest.NEED_TIMEOUT);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("No VS NEED from " + waiting, e);
+            }
+            VSFtp vspacket = new VSFtp(packet);
+            if (vspacket.getType() != VSFtp.TYPE_NEED)
+                throw new IOException("Unexpected VS message " + vspacket.asString());
+            indexes.clear();
+            if (!VSManifest.decodeNeed(vspacket.getData(), indexes))
+                waiting.remove(packet.getSocketAddress());
+            needed.addAll(indexes);
+        }
+        return needed;
+    }
+
+    private void sendFile(Transfer transfer, int stream) throws IOException {
+        String fileName = transfer.path;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            int chunk = VSFtp.MAX_DATA_LEN;
+            ArrayList<String> options = new ArrayList<String>();
+            if (negotiateChunk) {
+                // the receiver sizes its buffers from the BEGIN
+                chunk = chunkSize();
+                options.add(VSFtp.OPT_CHUNK + "=" + chunk);
+            }
+            if (resume) {
+                options.addAll(Arrays.asList(identity(fileName, channel)));
+            }
+            Deflater deflater = null;
+            int piece = chunk;
+            int expand = 1;
+            if (transfer.tree) {
+                options.add(VSFtp.OPT_TREE + "=1");
+            }
+            if (delta) {
+                options.add(VSFtp.OPT_DELTA + "=" + VSFtp.DELTA_RSYNC);
+            }
+            if (compress) {
+                options.add(VSFtp.OPT_COMPRESS + "=" + VSFtp.COMPRESS_DEFLATE);
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                piece = chunk - 1; // room for the coding byte, also when sent as it is
+            }
+            if (checksum) {
+                options.add(VSFtp.OPT_CHECKSUM + "=" + VSFtp.CHECKSUM_CRC32C);
+            }
+            VSFtp vsBegin = new VSFtp(VSFtp.TYPE_BEGIN, transfer.name, options.toArray(new String[0]));
+            sendAll(vsBegin, stream);
+            long position = 0;
+            CRC32C crc = checksum ? new CRC32C() : null;
+            if (resume) {
+                // all receivers continue from where the one that has the least left off
+                position = awaitResume(stream);
+                sendAll(new VSFtp(VSFtp.TYPE_RESUME, position), stream);
+                if (debug)
+                    System.err.println("Resume " + transfer.name + " at " + position);
+                if (crc != null)
+                    VSFtp.checksum(channel, position, crc); // the part the receivers have
+            }
+            if (delta) {
+                // COPY what the receiver's copy already has, up to where the last match ends
+                position = sendDelta(channel, VSDelta.receiveSignatures(gUdpSocket, stream), piece, stream, deflater,
+                        crc);
+            }
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(BLOCK_LEN);
+            ByteBuffer block;
+            while ((block = nextBlock(channel, position, piece, readBuffer)) != null) {
+                position += block.remaining();
+                expand = sendData(block, piece, expand, stream, deflater, crc);
+                // shared payloads refer to the block until ACKed, a single destination copies it
+                if (block == readBuffer && destSocketAddresses.size() > 1)
+                    readBuffer = ByteBuffer.allocateDirect(BLOCK_LEN);
+            }
+            if (deflater != null)
+                deflater.end();
+            VSFtp vsEnd = crc != null ? VSFtp.end(crc) : new VSFtp(VSFtp.TYPE_END);
+            sendAll(vsEnd, stream);
+        }
+    }
+
+    /*
+     * Sends files, taking the next unsent one from the shared index, all on
+     * one stream. Files on a stream follow each other: BEGIN of the next
+     * file is delivered after END of the previous one.
+     */
+    private class StreamSender implements Runnable {
+        private final int stream;
+        private final AtomicInteger next;
+        private Exception failure;
+
+        StreamSender(int stream, AtomicInteger next) {
+            this.stream = stream;
+            this.next = next;
+        }
+
+        public void run() {
+            try {
+                int index;
+                while ((index = next.getAndIncrement()) < transfers.size()) {
+                    sendFile(transfers.get(index), stream);
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    /*
+     * Send all files, parallel at a time, and wait until they are queued
+     */
+    private void sendParallel() throws Exception {
+        AtomicInteger next = new AtomicInteger(0);
+        int count = Math.min(parallel, transfers.size());
+        StreamSender[] senders = new StreamSender[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            senders[i] = new StreamSender(i + 1, next);
+            threads[i] = new Thread(senders[i], "VSFTP Sender " + (i + 1));
+            threads[i].start();
+        }
+        for (int i = 0; i < count; i++) {
+            threads[i].join();
+        }
+        for (StreamSender sender : senders) {
+            if (sender.failure != null)
+                throw sender.failure;
         }
-        VSFtp vsEnd = new VSFtp(VSFtp.TYPE_END);
-        sendAll(vsEnd);
-        gUdpSocket.finish();
     }
 
     private boolean setDebug(boolean dbg) {
@@ -50,25 +572,58 @@ class VSFtpSender implements Runnable {
 
     public void run() {
         try {
+            boolean syncing = false;
+            HashMap<String, ArrayList<VSManifest.Entry>> manifests = manifests();
             for (String fileName : this.fileNames) {
-                sendFile(fileName);
+                if (manifests.containsKey(fileName)) {
+                    /* only what the destinations lack, on stream 0 before any file */
+                    syncTree(fileName, manifests.get(fileName));
+                    syncing = true;
+                } else {
+                    transfers.add(new Transfer(fileName, fileName, false));
+                }
+            }
+            if (syncing && parallel == 0)
+                parallel = TREE_PARALLEL;
+            if (parallel > 0) {
+                /* one BSN/FIN exchange for all files */
+                sendParallel();
+                gUdpSocket.finish();
+            } else {
+                for (Transfer transfer : transfers) {
+                    sendFile(transfer, 0);
+                    gUdpSocket.finish();
+                }
             }
             gUdpSocket.close();
         } catch (Exception e) {
             System.err.println("Exception in VS sender");
             e.printStackTrace();
+            // e.g. a receiver that never answered: give up on what is still queued
+            try {
+                gUdpSocket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 }
 
 public class VSSend {
     static boolean debug = false;
+    static boolean session_flag = false;
+    static boolean chunk_flag = false;
+    static boolean mtu_flag = false;
+    static int parallel_files = 0;
+    static boolean resume_flag = false;
+    static boolean compress_flag = false;
+    static boolean delta_flag = false;
+    static boolean checksum_flag = false;
     static ArrayList<InetSocketAddress> destSocketAddresses;
     static String[] fileNames;
     static GUDPSocket gUdpSocket;
 
     private static void usage() {
-        System.err.print("Usage: VSSend [-d] host1:port1 [host2:port2] ... file1 [file2]...\n");
+        System.err.print("Usage: VSSend [-d] [-s] [-c] [-m] [-p files] [-r] [-z] [-x] [-k] host1:port1 [host2:port2] ... file1|dir1 [file2|dir2]...\n");
         System.exit(1);
 
     }
@@ -76,8 +631,30 @@ public class VSSend {
     private static void getargs(String[] args) {
         int index = 0;
 
-        if (args.length > 0 && args[index].equals("-d")) {
-            debug = true;
+        while (index < args.length && args[index].startsWith("-")) {
+            if (args[index].equals("-d")) {
+                debug = true;
+            } else if (args[index].equals("-s")) {
+                session_flag = true;
+            } else if (args[index].equals("-c")) {
+                chunk_flag = true;
+            } else if (args[index].equals("-m")) {
+                mtu_flag = true;
+            } else if (args[index].equals("-x")) {
+                delta_flag = true;
+            } else if (args[index].equals("-k")) {
+                checksum_flag = true;
+            } else if (args[index].equals("-z")) {
+                compress_flag = true;
+            } else if (args[index].equals("-r")) {
+                resume_flag = true;
+            } else if (args[index].equals("-p") && index + 1 < args.length) {
+                index++;
+                parallel_files = Integer.parseInt(args[index]);
+                if (parallel_files < 1 || parallel_files > GUDPPacket.MAX_STREAM)
+                    usage();
+            } else
+                usage();
             index++;
         }
         destSocketAddresses = new ArrayList<InetSocketAddress>();
@@ -94,14 +671,38 @@ public class VSSend {
         for (String s : fileNames)
             if (destSocketAddresses.size() == 0 || fileNames.length == 0)
                 usage();
+        /* a delta is against one receiver's copy, and replaces resuming */
+        if (delta_flag && (destSocketAddresses.size() != 1 || resume_flag))
+            usage();
     }
 
     public static void main(String[] args) throws IOException {
         getargs(args);
         DatagramSocket dsock = new DatagramSocket();
         gUdpSocket = new GUDPSocket(dsock);
+        if (session_flag) {
+            /* one session for all files, first payload rides with the BSN */
+            gUdpSocket.setPersistentSession(true);
+            gUdpSocket.setDataOnBSN(true);
+        }
+        if (mtu_flag) {
+            /* probe each path, so that later files can use larger chunks */
+            gUdpSocket.setPathMTUDiscovery(true);
+        }
 
         VSFtpSender vsSender = new VSFtpSender(gUdpSocket, destSocketAddresses, fileNames);
+        /* chunks as large as a GUDP packet, announced in BEGIN */
+        vsSender.setNegotiateChunk(chunk_flag);
+        /* several files at a time, each on its own stream */
+        vsSender.setParallel(parallel_files);
+        /* continue interrupted transfers where the receivers left off */
+        vsSender.setResume(resume_flag);
+        /* deflate chunks, for text files that compress well */
+        vsSender.setCompress(compress_flag);
+        /* send only the changes to the receiver's copy */
+        vsSender.setDelta(delta_flag);
+        /* CRC32C of each file in its END, checked by the receiver */
+        vsSender.setChecksum(checksum_flag);
         Thread sender = new Thread(vsSender, "VSFTP Sender");
         sender.start();
     }
@@ -0,0 +1,132 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DRRSchedulerTest extends SocketTestBase {
+
+    private static GUDPEndPoint endPoint(int port, int weight) throws IOException {
+        GUDPEndPoint endPoint = new GUDPEndPoint(InetAddress.getLoopbackAddress(), port);
+        endPoint.setWeight(weight);
+        byte[] data = new byte[GUDPPacket.MAX_DATA_LEN];
+        DatagramPacket packet = new DatagramPacket(data, data.length,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        endPoint.enqueue(GUDPPacket.encapsulate(packet), GUDPSocket.priority.BULK);
+        return endPoint;
+    }
+
+    private static int length(GUDPEndPoint endPoint) {
+        GUDPPacket packet = endPoint.peekPending();
+        return packet.getHeaderLength() + packet.getPayloadLength();
+    }
+
+    @Test
+    void weightsSplitTransmitOpportunities() throws IOException {
+        DRRScheduler scheduler = new DRRScheduler();
+        GUDPEndPoint heavy = endPoint(1000, 3);
+        GUDPEndPoint light = endPoint(1001, 1);
+        LinkedList<GUDPEndPoint> senderList = new LinkedList<>();
+        senderList.add(heavy);
+        senderList.add(light);
+        int heavySent = 0;
+        int lightSent = 0;
+        for (int round = 0; round < 100; round++) {
+            scheduler.beginRound(senderList);
+            // both always have a packet waiting, only the scheduler holds them back
+            while (scheduler.mayTransmit(heavy, length(heavy))) {
+                scheduler.transmitted(heavy, length(heavy));
+                heavySent++;
+            }
+            while (scheduler.mayTransmit(light, length(light))) {
+                scheduler.transmitted(light, length(light));
+                lightSent++;
+            }
+        }
+        assertTrue(lightSent >= 90, "light end point starved: " + lightSent);
+        assertEquals(3.0, (double) heavySent / lightSent, 0.1);
+    }
+
+    @Test
+    void blockedEndPointDoesNotSaveUpCredit() throws IOException {
+        DRRScheduler scheduler = new DRRScheduler();
+        GUDPEndPoint blocked = endPoint(1000, 2);
+        LinkedList<GUDPEndPoint> senderList = new LinkedList<>();
+        senderList.add(blocked);
+        // e.g. a full window: packets wait, but nothing is transmitted
+        for (int round = 0; round < 1000; round++) {
+            scheduler.beginRound(senderList);
+        }
+        assertEquals(2L * DRRScheduler.DEFAULT_QUANTUM, blocked.getDeficit());
+    }
+
+    @Test
+    void largePacketStillGoesOut() throws IOException {
+        DRRScheduler scheduler = new DRRScheduler(100);
+        GUDPEndPoint endPoint = endPoint(1000, 1);
+        LinkedList<GUDPEndPoint> senderList = new LinkedList<>();
+        senderList.add(endPoint);
+        int rounds = 0;
+        while (!scheduler.mayTransmit(endPoint, length(endPoint))) {
+            scheduler.beginRound(senderList);
+            assertTrue(++rounds < 100, "packet larger than the quantum never sent");
+        }
+    }
+
+    @Test
+    void senderListIsLeftAlone() throws IOException {
+        DRRScheduler scheduler = new DRRScheduler();
+        LinkedList<GUDPEndPoint> senderList = new LinkedList<>();
+        for (int port = 1000; port < 1003; port++) {
+            senderList.add(endPoint(port, 1));
+        }
+        List<GUDPEndPoint> before = List.copyOf(senderList);
+        List<GUDPEndPoint> first = scheduler.beginRound(senderList);
+        List<GUDPEndPoint> second = scheduler.beginRound(senderList);
+        assertEquals(before, senderList);
+        // every end point is visited each round, starting one further along
+        assertEquals(3, first.size());
+        assertEquals(first.get(1), second.get(0));
+    }
+
+    /*
+     * Milliseconds to send messages packets to one receiver and get them all
+     */
+    private long transfer(TransmitScheduler scheduler, int messages) throws IOException {
+        GUDPSocket receiver = open();
+        GUDPSocket sender = open();
+        sender.setScheduler(scheduler);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            send(sender, address(receiver), "message " + i);
+        }
+        for (int i = 0; i < messages; i++) {
+            assertEquals("message " + i, receive(receiver));
+        }
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    @Test
+    void loneEndPointIsNotSlowerThanFIFO() throws IOException {
+        final int messages = 100;
+        long fifo = transfer(new FIFOScheduler(), messages);
+        long drr = transfer(new DRRScheduler(), messages);
+        // a weight 1 quantum is one packet, still the window must stay full
+        assertTrue(drr <= 2 * fifo + 200, "DRR took " + drr + " ms, FIFO " + fifo + " ms");
+    }
+
+        @Test
+    void weightBelowOneIsRejected() {
+        GUDPEndPoint endPoint = new GUDPEndPoint(InetAddress.getLoopbackAddress(), 1000);
+        assertThrows(IllegalArgumentException.class, () -> endPoint.setWeight(0));
+        assertThrows(IllegalArgumentException.class, () -> endPoint.setWeight(-1));
+        assertThrows(IllegalArgumentException.class, () -> new DRRScheduler(0));
+    }
+}
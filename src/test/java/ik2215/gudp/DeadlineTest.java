@@ -0,0 +1,50 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadlineTest extends SocketTestBase {
+
+    private static boolean isStale(GUDPPacket packet) {
+        if (packet.getType() != GUDPPacket.TYPE_DATA) {
+            return false;
+        }
+        byte[] payload = new byte[packet.getPayloadLength()];
+        packet.getPayload(payload, payload.length);
+        return new String(payload, StandardCharsets.UTF_8).equals("stale");
+    }
+
+    @Test
+    void expiredMessageIsSkippedWithFWD() throws Exception {
+        GUDPSocket sender = open();
+        GUDPSocket receiver = open();
+        AtomicInteger forwards = new AtomicInteger();
+        // every copy of the stale message is lost, FWD goes through
+        Relay relay = relay(address(receiver), p -> {
+            if (p.getType() == GUDPPacket.TYPE_FWD) {
+                forwards.incrementAndGet();
+            }
+            return isStale(p);
+        });
+        InetSocketAddress dest = relay.address();
+        send(sender, dest, "first");
+        assertEquals("first", receive(receiver));
+
+        ByteBuffer stale = ByteBuffer.wrap("stale".getBytes(StandardCharsets.UTF_8));
+        sender.send(dest, new ByteBuffer[] { stale }, 0, GUDPSocket.priority.BULK, 200);
+        send(sender, dest, "fresh");
+        long start = System.nanoTime();
+        // the receiver skips the abandoned seqno instead of waiting for it
+        assertEquals("fresh", receive(receiver));
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        assertTrue(relay.dropped() >= 1);
+        assertTrue(forwards.get() >= 1, "no FWD sent");
+        assertTrue(elapsed < GUDPEndPoint.TIMEOUT_DURATION, "waited " + elapsed + " ms for the timeout");
+    }
+}
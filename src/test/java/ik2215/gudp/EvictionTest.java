@@ -0,0 +1,223 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Bounded endpoint tables: eviction must never lose data the peer believes
+ * was delivered, and never break a session that is still open.
+ */
+class EvictionTest extends SocketTestBase {
+
+    /*
+     * Run one sender per thread that sends its messages and calls finish()
+     */
+    private static Thread sender(GUDPSocket socket, InetSocketAddress dest, List<String> messages,
+            List<Throwable> errors) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (String message : messages) {
+                    send(socket, dest, message);
+                }
+                socket.finish();
+            } catch (Throwable e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    void receiverKeepsUndeliveredData() throws Exception {
+        GUDPSocket receiver = open();
+        receiver.setEndPointLimit(2, GUDPEndPoint.IDLE_TIMEOUT);
+        InetSocketAddress dest = address(receiver);
+        ArrayList<Throwable> errors = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            threads.add(sender(open(), dest, List.of("early " + i), errors));
+        }
+        // both sessions are finished, but the application has not read them
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        Thread late = sender(open(), dest, List.of("late"), errors);
+        Thread.sleep(500);
+        assertEquals(0, receiver.getReceiverEvictions(), "evicted an end point with undelivered data");
+
+        ArrayList<String> received = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            received.add(receive(receiver));
+        }
+        late.join(20000);
+        assertFalse(late.isAlive());
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertTrue(received.containsAll(List.of("early 0", "early 1", "late")), received.toString());
+        assertTrue(receiver.getReceiverEvictions() >= 1);
+    }
+
+    @Test
+    void receiverUnderLoad() throws Exception {
+        final int peers = 8;
+        final int messages = 20;
+        GUDPSocket receiver = open();
+        receiver.setEndPointLimit(peers / 2, GUDPEndPoint.IDLE_TIMEOUT);
+        InetSocketAddress dest = address(receiver);
+        ArrayList<Throwable> errors = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            ArrayList<String> texts = new ArrayList<>();
+            for (int j = 0; j < messages; j++) {
+                texts.add(i + ":" + j);
+            }
+            threads.add(sender(open(), dest, texts, errors));
+        }
+
+        HashMap<Integer, Integer> next = new HashMap<>();
+        for (int n = 0; n < peers * messages; n++) {
+            String[] text = receive(receiver).split(":");
+            int peer = Integer.parseInt(text[0]);
+            int seq = Integer.parseInt(text[1]);
+            assertEquals((int) next.getOrDefault(peer, 0), seq, "lost or reordered message from peer " + peer);
+            next.put(peer, seq + 1);
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertTrue(receiver.getReceiverEvictions() >= peers / 2);
+    }
+
+    @Test
+    void receiverSweepsIdleWithoutTraffic() throws Exception {
+        GUDPSocket receiver = open();
+        receiver.setEndPointLimit(GUDPEndPoint.MAX_ENDPOINTS, 500);
+        GUDPSocket sender = open();
+        send(sender, address(receiver), "hello");
+        sender.finish();
+        assertEquals("hello", receive(receiver));
+        // no packet arrives from now on, the sweep still has to run
+        Thread.sleep(2500);
+        assertEquals(1, receiver.getReceiverEvictions());
+    }
+
+    @Test
+    void receiverKeepsPersistentSession() throws Exception {
+        GUDPSocket receiver = open();
+        receiver.setEndPointLimit(1, GUDPEndPoint.IDLE_TIMEOUT);
+        GUDPSocket persistent = open();
+        persistent.setPersistentSession(true);
+        send(persistent, address(receiver), "first");
+        persistent.finish();
+        assertEquals("first", receive(receiver));
+
+        // the FIN said the session goes on, so a new peer does not push it out
+        send(open(), address(receiver), "refused");
+        Thread.sleep(500);
+        assertEquals(0, receiver.getReceiverEvictions());
+
+        send(persistent, address(receiver), "second");
+        persistent.finish();
+        assertEquals("second", receive(receiver));
+    }
+
+        @Test
+    void senderKeepsOpenSession() throws Exception {
+        GUDPSocket receiverA = open();
+        GUDPSocket receiverB = open();
+        GUDPSocket sender = open();
+        sender.setEndPointLimit(1, GUDPEndPoint.IDLE_TIMEOUT);
+
+        send(sender, address(receiverA), "first");
+        assertEquals("first", receive(receiverA));
+        // everything is ACKed, but the session to A is still open
+        assertThrows(IOException.class, () -> send(sender, address(receiverB), "refused"));
+        assertEquals(0, sender.getSenderEvictions());
+
+        send(sender, address(receiverA), "second");
+        sender.finish();
+        assertEquals("second", receive(receiverA));
+
+        // a finished session makes room
+        send(sender, address(receiverB), "third");
+        sender.finish();
+        assertEquals("third", receive(receiverB));
+    }
+
+    @Test
+    void senderKeepsPersistentSession() throws Exception {
+        GUDPSocket receiverA = open();
+        GUDPSocket receiverB = open();
+        GUDPSocket sender = open();
+        sender.setEndPointLimit(1, GUDPEndPoint.IDLE_TIMEOUT);
+        sender.setPersistentSession(true);
+
+        send(sender, address(receiverA), "first");
+        sender.finish();
+        assertEquals("first", receive(receiverA));
+        assertThrows(IOException.class, () -> send(sender, address(receiverB), "refused"));
+
+        // the session to A goes on in the same sequence space
+        send(sender, address(receiverA), "second");
+        sender.finish();
+        assertEquals("second", receive(receiverA));
+    }
+
+    @Test
+    void senderUnderLoad() throws Exception {
+        final int peers = 6;
+        GUDPSocket sender = open();
+        sender.setEndPointLimit(2, GUDPEndPoint.IDLE_TIMEOUT);
+        ArrayList<GUDPSocket> receivers = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            receivers.add(open());
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < peers; i += 2) {
+                send(sender, address(receivers.get(i)), round + ":" + i);
+                send(sender, address(receivers.get(i + 1)), round + ":" + (i + 1));
+                sender.finish();
+            }
+            // the next round starts new sessions to the same peers
+            for (int i = 0; i < peers; i++) {
+                assertEquals(round + ":" + i, receive(receivers.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void finishedRepliesMakeRoom() throws Exception {
+        GUDPSocket server = open();
+        server.setEndPointLimit(2, GUDPEndPoint.IDLE_TIMEOUT);
+        ArrayList<GUDPSocket> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(open());
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < clients.size(); i++) {
+                InetSocketAddress dest = address(clients.get(i));
+                send(server, dest, "reply " + round + ":" + i);
+                server.finish(dest);
+                assertEquals("reply " + round + ":" + i, receive(clients.get(i)));
+                // let go once the FIN is ACKed, so the limit is never reached
+                for (int wait = 0; !server.senderList.isEmpty(); wait++) {
+                    assertTrue(wait < 100, "reply end point kept");
+                    Thread.sleep(20);
+                }
+            }
+        }
+        assertEquals(0, server.getSenderEvictions());
+    }
+}
@@ -0,0 +1,66 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FECTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000);
+
+    private static GUDPPacket data(int seq, int length) throws IOException {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seq * 31 + i);
+        }
+        GUDPPacket gudppacket = GUDPPacket.encapsulate(new DatagramPacket(payload, length, PEER));
+        gudppacket.setSeqno(seq);
+        return gudppacket;
+    }
+
+    private static GUDPPacket wire(DatagramPacket udppacket) throws IOException {
+        return GUDPPacket.unpack(udppacket);
+    }
+
+    private static byte[] payload(GUDPPacket gudppacket) {
+        byte[] bytes = new byte[gudppacket.getPayloadLength()];
+        gudppacket.getPayload(bytes, bytes.length);
+        return bytes;
+    }
+
+    @Test
+    void recoversPacketWhoseCopiesCarriedOtherACKs() throws IOException {
+        GUDPPacket[] block = { data(100, 1000), data(101, 700), data(102, 1000) };
+
+        // first transmissions, one of them with a piggybacked ACK
+        GUDPEndPoint sender = new GUDPEndPoint(PEER.getAddress(), PEER.getPort());
+        sender.setFecBlock(block.length);
+        DatagramPacket first0 = block[0].packWithAck(55);
+        DatagramPacket first1 = block[1].pack();
+        DatagramPacket first2 = block[2].pack();
+        sender.fecAdd(100, first0.getData(), first0.getLength());
+        sender.fecAdd(101, first1.getData(), first1.getLength());
+        assertTrue(sender.fecAdd(102, first2.getData(), first2.getLength()));
+        GUDPPacket parity = wire(sender.fecParity().pack());
+
+        GUDPEndPoint receiver = new GUDPEndPoint(PEER.getAddress(), PEER.getPort());
+        receiver.setExpectedseqnum(101);
+        assertNull(receiver.fecRecover(parity)); // nothing cached before the first parity
+        // the receiver keeps retransmitted copies, with a different ACK or none
+        receiver.fecCache(wire(block[0].pack()));
+        receiver.fecCache(wire(block[2].packWithAck(77)));
+
+        GUDPPacket rebuilt = receiver.fecRecover(parity);
+        assertNotNull(rebuilt);
+        assertEquals(101, rebuilt.getSeqno());
+        assertEquals(GUDPPacket.TYPE_DATA, rebuilt.getType());
+        assertEquals(0, rebuilt.getFlags());
+        assertEquals(700, rebuilt.getPayloadLength());
+        assertArrayEquals(payload(block[1]), payload(rebuilt));
+    }
+}
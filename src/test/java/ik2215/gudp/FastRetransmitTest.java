@@ -0,0 +1,31 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FastRetransmitTest extends SocketTestBase {
+
+    @Test
+    void lossIsRepairedBeforeTimeout() throws IOException {
+        GUDPSocket receiver = open();
+        GUDPSocket sender = open();
+        AtomicBoolean lost = new AtomicBoolean();
+        Relay relay = relay(address(receiver),
+                p -> p.getType() == GUDPPacket.TYPE_DATA && lost.compareAndSet(false, true));
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            send(sender, relay.address(), "message " + i);
+        }
+        // the packets after the lost one are held and ACKed twice for it
+        for (int i = 0; i < 4; i++) {
+            assertEquals("message " + i, receive(receiver));
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        assertEquals(1, relay.dropped());
+        assertTrue(elapsed < GUDPEndPoint.TIMEOUT_DURATION, "waited " + elapsed + " ms for the timeout");
+    }
+}
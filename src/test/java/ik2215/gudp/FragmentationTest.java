@@ -0,0 +1,83 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentationTest extends SocketTestBase {
+
+    @Test
+    void largeMessageIsReassembled() throws IOException {
+        GUDPSocket receiver = open();
+        GUDPSocket sender = open();
+        byte[] data = new byte[5 * GUDPPacket.MAX_DATA_LEN + 123];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        sender.send(new DatagramPacket(data, data.length, address(receiver)));
+        sender.finish();
+        byte[] buf = new byte[2 * data.length];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        receiver.receive(packet);
+        assertEquals(data.length, packet.getLength());
+        assertArrayEquals(data, Arrays.copyOf(buf, packet.getLength()));
+    }
+
+    @Test
+    void oversizeMessageIsRefusedAtSend() throws IOException {
+        GUDPSocket sender = open();
+        sender.setMaxMessageSize(4000);
+        byte[] data = new byte[4001];
+        InetSocketAddress dest = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+        assertThrows(IOException.class, () -> sender.send(new DatagramPacket(data, data.length, dest)));
+    }
+
+    @Test
+    void queueLimitCountsEveryFragment() throws IOException {
+        GUDPEndPoint endPoint = new GUDPEndPoint(InetAddress.getLoopbackAddress(), 9);
+        endPoint.setMaxQueuePackets(4);
+        // an empty queue takes any one message
+        assertFalse(endPoint.isFullQueue(10, 10 * GUDPPacket.MAX_DATA_LEN));
+        byte[] data = new byte[GUDPPacket.MAX_DATA_LEN];
+        endPoint.enqueue(GUDPPacket.encapsulate(new DatagramPacket(data, data.length,
+                endPoint.getRemoteEndPoint())), GUDPSocket.priority.BULK);
+        assertFalse(endPoint.isFullQueue(3, 3 * GUDPPacket.MAX_DATA_LEN));
+        assertTrue(endPoint.isFullQueue(4, 4 * GUDPPacket.MAX_DATA_LEN));
+    }
+
+    /*
+     * The fragments of a message of length bytes on stream, as they arrive
+     */
+    private static ArrayList<GUDPPacket> message(int stream, int length) throws IOException {
+        ArrayList<GUDPPacket> fragments = GUDPPacket.fragment(new ByteBuffer[] { ByteBuffer.allocate(length) },
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 9), GUDPPacket.MAX_DATA_LEN, stream);
+        for (int i = 0; i < fragments.size(); i++) {
+            fragments.get(i).setStreamSeq(i);
+        }
+        return fragments;
+    }
+
+    @Test
+    void reassemblyLimitDropsOldestMessage() throws IOException {
+        GUDPEndPoint endPoint = new GUDPEndPoint(InetAddress.getLoopbackAddress(), 9);
+        endPoint.setMaxFragmentBytes(2500);
+        ArrayList<GUDPPacket> first = message(1, 1500);
+        ArrayList<GUDPPacket> second = message(2, 1500);
+        ArrayList<GUDPPacket> third = message(3, 1500);
+        assertFalse(endPoint.reassemble(first.get(0)));
+        assertFalse(endPoint.reassemble(second.get(0)));
+        // every message is within the per-message limit, but three heads are too much
+        assertFalse(endPoint.reassemble(third.get(0)));
+        assertFalse(endPoint.reassemble(first.get(1)), "oldest message was kept");
+        assertTrue(endPoint.reassemble(second.get(1)));
+        assertTrue(endPoint.reassemble(third.get(1)));
+    }
+}
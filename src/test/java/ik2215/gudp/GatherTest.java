@@ -0,0 +1,48 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GatherTest extends SocketTestBase {
+
+    @Test
+    void messageIsGatheredFromHeapDirectAndMappedBuffers() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(42).nextBytes(data);
+        ByteBuffer heap = ByteBuffer.wrap(data, 0, 1500).position(100); // only the remaining bytes count
+        ByteBuffer direct = ByteBuffer.allocateDirect(1500);
+        direct.put(data, 1500, 1500).flip();
+        Path file = Files.createTempFile("gather", ".bin");
+        try {
+            Files.write(file, Arrays.copyOfRange(data, 3000, 5000));
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, 2000);
+            }
+            GUDPSocket sender = open();
+            GUDPSocket receiver = open();
+            sender.send(address(receiver), heap, direct, mapped);
+            assertEquals(100, heap.position());
+            assertEquals(0, direct.position());
+            assertEquals(0, mapped.position());
+
+            byte[] buf = new byte[data.length];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            receiver.receive(packet);
+            assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), Arrays.copyOf(buf, packet.getLength()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacingTest {
+
+    private static GUDPEndPoint endPoint(long rate) throws IOException {
+        GUDPEndPoint endPoint = new GUDPEndPoint(InetAddress.getLoopbackAddress(), 1000);
+        endPoint.setPaceRate(rate);
+        byte[] data = new byte[100];
+        endPoint.enqueue(GUDPPacket.encapsulate(new DatagramPacket(data, data.length,
+                endPoint.getRemoteEndPoint())), GUDPSocket.priority.BULK);
+        return endPoint;
+    }
+
+    @Test
+    void retransmissionsAreCharged() throws IOException {
+        GUDPEndPoint endPoint = endPoint(10000);
+        // a timeout resends three full packets without waiting for tokens
+        for (int i = 0; i < 3; i++) {
+            endPoint.paced(GUDPPacket.MAX_DATAGRAM_LEN);
+        }
+        assertFalse(endPoint.paceAllows(100));
+        assertTrue(endPoint.paceDelay() >= 300, "delay " + endPoint.paceDelay() + " ms");
+    }
+
+    @Test
+    void rttRateFollowsSegmentSize() throws IOException {
+        GUDPEndPoint endPoint = endPoint(GUDPEndPoint.PACE_RTT);
+        endPoint.sampleRtt(1000000000L);
+        endPoint.paceAllows(100);
+        endPoint.paced(100 + 2 * (GUDPEndPoint.MAX_PROBE_LEN + GUDPPacket.MAX_OVERHEAD));
+        long before = endPoint.paceDelay();
+        // a window of larger segments per RTT is a proportionally higher rate
+        endPoint.setPathMTUDiscovery(true);
+        while (endPoint.getMaxSegment() == GUDPPacket.MAX_DATA_LEN) {
+            endPoint.probeAcked(endPoint.nextProbe(System.nanoTime()));
+        }
+        long after = endPoint.paceDelay();
+        assertTrue(after < before, "delay " + after + " ms, was " + before + " ms");
+    }
+}
@@ -0,0 +1,72 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathMTUTest extends SocketTestBase {
+
+    @Test
+    void windowIsSplitAfterBlackHole() throws Exception {
+        GUDPSocket receiver = open();
+        GUDPSocket sender = open();
+        sender.setPathMTUDiscovery(true);
+        AtomicBoolean blackHole = new AtomicBoolean();
+        Relay relay = relay(address(receiver), p -> blackHole.get()
+                && p.getHeaderLength() + p.getPayloadLength() > GUDPPacket.MAX_DATAGRAM_LEN);
+        InetSocketAddress dest = relay.address();
+        // probes only go out while there is traffic
+        for (int i = 0; sender.getMaxSegment(dest) == GUDPPacket.MAX_DATA_LEN; i++) {
+            assertTrue(i < 100, "path MTU never raised");
+            send(sender, dest, "probe " + i);
+            assertEquals("probe " + i, receive(receiver));
+            Thread.sleep(20);
+        }
+
+        // the path stops carrying large datagrams while they are in flight
+        blackHole.set(true);
+        byte[] data = new byte[3 * sender.getMaxSegment(dest) + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        sender.send(new DatagramPacket(data, data.length, dest));
+        byte[] buf = new byte[2 * data.length];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        receiver.receive(packet);
+        assertArrayEquals(data, Arrays.copyOf(buf, packet.getLength()));
+        assertEquals((int) GUDPPacket.MAX_DATA_LEN, sender.getMaxSegment(dest));
+        assertTrue(relay.dropped() > 0);
+    }
+
+    @Test
+    void probeIsAnsweredWithoutSession() throws IOException {
+        GUDPSocket receiver = open();
+        try (DatagramSocket peer = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            peer.setSoTimeout(2000);
+            int size = 1200;
+            ByteBuffer probe = ByteBuffer.allocate(size);
+            probe.order(ByteOrder.BIG_ENDIAN);
+            probe.putShort(0, GUDPPacket.GUDP_VERSION);
+            probe.putShort(2, GUDPPacket.TYPE_PROBE);
+            probe.putInt(4, size);
+            peer.send(new DatagramPacket(probe.array(), size, address(receiver)));
+            // e.g. a peer this receiver evicted: no PROBE_ACK would lower the search bound
+            byte[] buf = new byte[GUDPPacket.HEADER_SIZE];
+            DatagramPacket reply = new DatagramPacket(buf, buf.length);
+            peer.receive(reply);
+            ByteBuffer ack = ByteBuffer.wrap(buf);
+            assertEquals(GUDPPacket.TYPE_PROBE_ACK, ack.getShort(2));
+            assertEquals(size, ack.getInt(4));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PiggybackTest extends SocketTestBase {
+
+    @Test
+    void ackRidesOnReverseData() throws Exception {
+        GUDPSocket a = open();
+        GUDPSocket b = open();
+        a.setPiggybackACK(true, 500);
+        a.setPacing(20000); // keeps DATA queued towards b while b's DATA comes in
+        AtomicInteger piggybacked = new AtomicInteger();
+        Relay relay = relay(address(b), p -> {
+            if (p.getType() == GUDPPacket.TYPE_DATA && (p.getFlags() & GUDPPacket.FLAG_ACK) != 0) {
+                piggybacked.incrementAndGet();
+            }
+            return false;
+        });
+        InetSocketAddress toB = relay.address();
+        String padding = "x".repeat(200);
+        for (int i = 0; i < 50; i++) {
+            send(a, toB, i + padding);
+        }
+        assertEquals(0 + padding, receive(b));
+        // b sees a at the relay
+        for (int i = 0; i < 5; i++) {
+            send(b, toB, "reply " + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("reply " + i, receive(a));
+        }
+        for (int i = 1; i < 50; i++) {
+            assertEquals(i + padding, receive(b));
+        }
+        assertTrue(piggybacked.get() > 0, "no ACK piggybacked on DATA to b");
+    }
+}
@@ -0,0 +1,47 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriorityTest extends SocketTestBase {
+
+    private static void send(GUDPSocket socket, InetSocketAddress dest, String text, GUDPSocket.priority prio)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        socket.send(dest, new ByteBuffer[] { data }, 0, prio, 0);
+    }
+
+    @Test
+    void higherClassesOvertakeQueuedBulk() throws Exception {
+        GUDPSocket sender = open();
+        GUDPSocket receiver = open();
+        sender.setPacing(20000); // the bulk messages are still queued when the others come
+        InetSocketAddress dest = address(receiver);
+        String padding = "x".repeat(200);
+        for (int i = 0; i < 30; i++) {
+            send(sender, dest, "bulk " + i + padding, GUDPSocket.priority.BULK);
+        }
+        send(sender, dest, "interactive", GUDPSocket.priority.INTERACTIVE);
+        send(sender, dest, "control", GUDPSocket.priority.CONTROL);
+
+        ArrayList<String> received = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            received.add(receive(receiver));
+        }
+        int control = received.indexOf("control");
+        int interactive = received.indexOf("interactive");
+        assertTrue(control >= 0 && control < interactive, received.toString());
+        assertTrue(interactive < received.indexOf("bulk 29" + padding), received.toString());
+        // bulk keeps its own order
+        for (int i = 1; i < 30; i++) {
+            assertTrue(received.indexOf("bulk " + (i - 1) + padding) < received.indexOf("bulk " + i + padding));
+        }
+    }
+}
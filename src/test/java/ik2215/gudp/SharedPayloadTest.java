@@ -0,0 +1,49 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedPayloadTest {
+
+    @Test
+    void packetsAreGatheredIntoScratch() throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(new byte[] { 7, 8, 9, 10 }).flip();
+        SharedPayload payload = new SharedPayload(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                ByteBuffer.wrap(new byte[] { 4, 5, 6 }), direct);
+        InetSocketAddress dest = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+        ArrayList<GUDPPacket> packets = GUDPPacket.share(payload, dest, 4, 0);
+        byte[] scratch = new byte[GUDPPacket.MAX_UDP_LEN];
+        byte[] received = new byte[payload.length()];
+        int offset = 0;
+        for (GUDPPacket packet : packets) {
+            DatagramPacket datagram = packet.pack(scratch);
+            assertSame(scratch, datagram.getData());
+            GUDPPacket wire = GUDPPacket.unpack(new DatagramPacket(
+                    Arrays.copyOf(scratch, datagram.getLength()), datagram.getLength(), dest));
+            wire.getPayload(received, offset, wire.getPayloadLength());
+            offset += wire.getPayloadLength();
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, received);
+    }
+
+    @Test
+    void useAfterReleaseFails() {
+        SharedPayload payload = new SharedPayload(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        payload.release();
+        assertTrue(payload.isReleased());
+        assertThrows(IllegalStateException.class, () -> payload.copyTo(0, new byte[3], 0, 3));
+        assertThrows(IllegalStateException.class, payload::getBuffers);
+        assertThrows(IllegalStateException.class, payload::retain);
+        assertThrows(IllegalStateException.class, payload::release);
+    }
+}
@@ -0,0 +1,130 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.AfterEach;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/*
+ * Scaffolding for tests that run GUDPSockets against each other on the
+ * loopback interface. Every socket and relay opened here is closed after
+ * the test.
+ */
+abstract class SocketTestBase {
+
+    private final ArrayList<GUDPSocket> sockets = new ArrayList<>();
+    private final ArrayList<Relay> relays = new ArrayList<>();
+
+    @AfterEach
+    void closeSockets() throws IOException {
+        for (GUDPSocket socket : sockets) {
+            socket.close();
+        }
+        sockets.clear();
+        for (Relay relay : relays) {
+            relay.close();
+        }
+        relays.clear();
+    }
+
+    GUDPSocket open() throws IOException {
+        GUDPSocket socket = new GUDPSocket(new DatagramSocket(0, InetAddress.getLoopbackAddress()));
+        sockets.add(socket);
+        return socket;
+    }
+
+    /*
+     * A relay to dest that loses the packets towards dest that drop accepts.
+     * Send to relay.address() instead of dest.
+     */
+    Relay relay(InetSocketAddress dest, Predicate<GUDPPacket> drop) throws IOException {
+        Relay relay = new Relay(dest, drop);
+        relays.add(relay);
+        relay.start();
+        return relay;
+    }
+
+    static InetSocketAddress address(GUDPSocket socket) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.datagramSocket.getLocalPort());
+    }
+
+    static void send(GUDPSocket socket, InetSocketAddress dest, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, dest));
+    }
+
+    static String receive(GUDPSocket socket) throws IOException {
+        byte[] buf = new byte[GUDPPacket.MAX_DATA_LEN];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Forwards datagrams between one sender and dest, so that tests can lose
+     * chosen packets on the way to dest. Everything coming back from dest
+     * goes through untouched.
+     */
+    static final class Relay extends Thread {
+        private final DatagramSocket socket;
+        private final InetSocketAddress dest;
+        private final Predicate<GUDPPacket> drop;
+        private final AtomicInteger dropped = new AtomicInteger();
+        private volatile SocketAddress source;
+
+        private Relay(InetSocketAddress dest, Predicate<GUDPPacket> drop) throws IOException {
+            super("Relay");
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            this.dest = dest;
+            this.drop = drop;
+            setDaemon(true);
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        }
+
+        int dropped() {
+            return dropped.get();
+        }
+
+        void close() {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[GUDPPacket.MAX_UDP_LEN];
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                    if (dest.equals(packet.getSocketAddress())) {
+                        if (source != null) {
+                            packet.setSocketAddress(source);
+                            socket.send(packet);
+                        }
+                    } else {
+                        source = packet.getSocketAddress();
+                        if (drop.test(GUDPPacket.unpack(packet))) {
+                            dropped.incrementAndGet();
+                        } else {
+                            packet.setSocketAddress(dest);
+                            socket.send(packet);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+    }
+}
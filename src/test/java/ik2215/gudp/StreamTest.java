@@ -0,0 +1,62 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamTest extends SocketTestBase {
+
+    private static void send(GUDPSocket socket, InetSocketAddress dest, int stream, String text)
+            throws IOException {
+        socket.send(dest, stream, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String receive(GUDPSocket socket, int stream, long timeout) throws IOException {
+        byte[] buf = new byte[GUDPPacket.MAX_DATA_LEN];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(stream, packet, timeout);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isPayload(GUDPPacket packet, String text) {
+        if (packet.getType() != GUDPPacket.TYPE_DATA) {
+            return false;
+        }
+        byte[] payload = new byte[packet.getPayloadLength()];
+        packet.getPayload(payload, payload.length);
+        return new String(payload, StandardCharsets.UTF_8).equals(text);
+    }
+
+    @Test
+    void lossOnOneStreamDoesNotHoldUpAnother() throws Exception {
+        GUDPSocket sender = open();
+        GUDPSocket receiver = open();
+        AtomicBoolean lossy = new AtomicBoolean(true);
+        Relay relay = relay(address(receiver), p -> lossy.get() && isPayload(p, "one 0"));
+        InetSocketAddress dest = relay.address();
+        send(sender, dest, 0, "open");
+        assertEquals("open", receive(receiver));
+
+        send(sender, dest, 1, "one 0");
+        send(sender, dest, 2, "two 0");
+        send(sender, dest, 2, "two 1");
+        send(sender, dest, 1, "one 1");
+        // stream 2 is delivered while stream 1 waits for its lost message
+        assertEquals("two 0", receive(receiver, 2, 2000));
+        assertEquals("two 1", receive(receiver, 2, 2000));
+        assertThrows(SocketTimeoutException.class, () -> receive(receiver, 1, 200));
+
+        lossy.set(false);
+        assertEquals("one 0", receive(receiver, 1, 10000));
+        assertEquals("one 1", receive(receiver, 1, 2000));
+        assertTrue(relay.dropped() >= 1);
+    }
+}
@@ -0,0 +1,28 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+class VSDeltaTest extends VSTestBase {
+
+    @Test
+    void changedFileIsRebuiltFromBasis() throws Exception {
+        byte[] old = random(300000, 1);
+        byte[] data = Arrays.copyOf(old, old.length + 5000);
+        System.arraycopy(random(5000, 2), 0, data, old.length, 5000);
+        System.arraycopy(random(700, 3), 0, data, 150000, 700);
+        Path path = file("delta.bin", data);
+        Files.write(received(path), old);
+
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        VSFtpSender sender = sender(open(), receiverSocket, path);
+        sender.setDelta(true);
+        run(sender);
+        // COPY ranges are read from the old copy by the writer, in order with the DATA
+        awaitFile(received(path), data);
+    }
+}
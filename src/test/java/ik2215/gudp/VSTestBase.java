@@ -0,0 +1,121 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Scaffolding for VSFtp transfers between a VSFtpSender and a VSFtpReceiver
+ * on the loopback interface. A file is named in its BEGIN by the path it is
+ * sent from, so the files to send are kept under a directory relative to the
+ * working directory, and the receiver writes them under the same relative
+ * path in a directory of its own.
+ */
+abstract class VSTestBase extends SocketTestBase {
+
+    Path sendDir;
+    Path recvDir;
+
+    @BeforeEach
+    void makeDirs() throws IOException {
+        Files.createDirectories(Paths.get("build"));
+        sendDir = Files.createTempDirectory(Paths.get("build"), "vssend");
+        recvDir = Files.createTempDirectory("vsrecv");
+        Files.createDirectories(recvDir.resolve(sendDir));
+    }
+
+    @AfterEach
+    void deleteDirs() throws IOException {
+        delete(sendDir);
+        delete(recvDir);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /*
+     * A file to send, with the given contents
+     */
+    Path file(String name, byte[] data) throws IOException {
+        return Files.write(sendDir.resolve(name), data);
+    }
+
+    /*
+     * Where the receiver puts file
+     */
+    Path received(Path file) {
+        return recvDir.resolve(file);
+    }
+
+    VSFtpReceiver receiver(GUDPSocket socket) {
+        return receiver(socket, VSFtpWriter.SyncPolicy.NONE);
+    }
+
+    VSFtpReceiver receiver(GUDPSocket socket, VSFtpWriter.SyncPolicy policy) {
+        VSFtpReceiver receiver = new VSFtpReceiver(socket);
+        receiver.setBasePath(recvDir.toString());
+        receiver.setSyncPolicy(policy);
+        Thread thread = new Thread(receiver, "VSFTP Receiver");
+        thread.setDaemon(true);
+        thread.start();
+        return receiver;
+    }
+
+    static VSFtpSender sender(GUDPSocket socket, GUDPSocket receiver, Path... files) {
+        return sender(socket, address(receiver), files);
+    }
+
+    static VSFtpSender sender(GUDPSocket socket, InetSocketAddress dest, Path... files) {
+        ArrayList<InetSocketAddress> dests = new ArrayList<>();
+        dests.add(dest);
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].toString();
+        }
+        return new VSFtpSender(socket, dests, names);
+    }
+
+    /*
+     * Run sender to the end: every file sent and ACKed
+     */
+    static void run(VSFtpSender sender) throws InterruptedException {
+        Thread thread = new Thread(sender, "VSFTP Sender");
+        thread.start();
+        thread.join(60000);
+        assertFalse(thread.isAlive(), "transfer did not finish");
+    }
+
+    /*
+     * Wait for the receiver to have written path in full: the sender is done
+     * once END is ACKed, the receiver's writer may still be at it
+     */
+    static void awaitFile(Path path, byte[] expected) throws Exception {
+        for (int wait = 0; !Files.exists(path) || !Arrays.equals(expected, Files.readAllBytes(path)); wait++) {
+            assertTrue(wait < 500, path + " not received in full");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VSTransferTest extends VSTestBase {
+
+    @Test
+    void mappedFileArrivesWhole() throws Exception {
+        // several read blocks, sent from the mapping in negotiated chunks
+        byte[] data = random(3 * VSFtpSender.BLOCK_LEN + 1234, 7);
+        Path path = file("mapped.bin", data);
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        VSFtpSender sender = sender(open(), receiverSocket, path);
+        sender.setNegotiateChunk(true);
+        run(sender);
+        awaitFile(received(path), data);
+    }
+
+    @Test
+    void writerCompletesFilesInTurn() throws Exception {
+        // the writer thread syncs and closes each file before its END is done
+        byte[] first = random(2 * VSFtpWriter.BLOCK_LEN + 99, 11);
+        byte[] second = random(VSFtpWriter.BLOCK_LEN / 2, 12);
+        Path one = file("one.bin", first);
+        Path two = file("two.bin", second);
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket, VSFtpWriter.SyncPolicy.END);
+        VSFtpSender sender = sender(open(), receiverSocket, one, two);
+        sender.setNegotiateChunk(true);
+        run(sender);
+        awaitFile(received(one), first);
+        awaitFile(received(two), second);
+    }
+
+    @Test
+    void parallelFilesShareOneSession() throws Exception {
+        Path[] paths = new Path[5];
+        byte[][] contents = new byte[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            contents[i] = random(200000 + i * 7777, 20 + i);
+            paths[i] = file("p" + i + ".bin", contents[i]);
+        }
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        AtomicInteger sessions = new AtomicInteger();
+        Relay relay = relay(address(receiverSocket), p -> {
+            if (p.getType() == GUDPPacket.TYPE_BSN) {
+                sessions.incrementAndGet();
+            }
+            return false;
+        });
+        VSFtpSender sender = sender(open(), relay.address(), paths);
+        sender.setParallel(3); // more files than streams: a stream takes the next file when it is free
+        run(sender);
+        for (int i = 0; i < paths.length; i++) {
+            awaitFile(received(paths[i]), contents[i]);
+        }
+        assertEquals(1, sessions.get());
+    }
+
+    @Test
+    void deflatedFileIsInflated() throws Exception {
+        // text that deflates well, then random chunks that go raw
+        byte[] text = "the quick brown fox jumps over the lazy dog\n".repeat(20000).getBytes(StandardCharsets.UTF_8);
+        byte[] data = Arrays.copyOf(text, text.length + 50000);
+        System.arraycopy(random(50000, 30), 0, data, text.length, 50000);
+        Path path = file("text.txt", data);
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        AtomicLong sent = new AtomicLong();
+        Relay relay = relay(address(receiverSocket), p -> {
+            if (p.getType() == GUDPPacket.TYPE_DATA) {
+                sent.addAndGet(p.getPayloadLength());
+            }
+            return false;
+        });
+        VSFtpSender sender = sender(open(), relay.address(), path);
+        sender.setCompress(true);
+        run(sender);
+        awaitFile(received(path), data);
+        assertTrue(sent.get() < text.length / 4 + 60000, sent.get() + " bytes sent");
+    }
+
+    /*
+     * Leave what an interrupted transfer of path would have: its first
+     * offset bytes, as kept, and the checkpoint that says so
+     */
+    private void interrupted(Path path, byte[] kept, int offset) throws Exception {
+        byte[] data = Files.readAllBytes(path);
+        String hash = VSFtp.hex(MessageDigest.getInstance("SHA-256").digest(data)); // one block: all of it
+        String identity = data.length + " " + Files.getLastModifiedTime(path).toMillis() + " " + hash;
+        Files.write(received(path), Arrays.copyOf(kept, offset));
+        Files.write(Paths.get(received(path) + VSFtpWriter.CHECKPOINT_SUFFIX),
+                (identity + "\n" + offset + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long resume(Path path) throws Exception {
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        AtomicLong sent = new AtomicLong();
+        Relay relay = relay(address(receiverSocket), p -> {
+            if (p.getType() == GUDPPacket.TYPE_DATA) {
+                sent.addAndGet(p.getPayloadLength());
+            }
+            return false;
+        });
+        VSFtpSender sender = sender(open(), relay.address(), path);
+        sender.setResume(true);
+        sender.setChecksum(true);
+        run(sender);
+        return sent.get();
+    }
+
+    @Test
+    void resumedFileIsChecked() throws Exception {
+        byte[] data = random(600000, 40);
+        Path path = file("resumed.bin", data);
+        interrupted(path, data, 400000);
+        long sent = resume(path);
+        // the CRC32C covers the bytes kept from before too
+        awaitFile(received(path), data);
+        assertTrue(sent < data.length - 400000 + 20000, sent + " bytes sent, not from the offset");
+    }
+
+    @Test
+    void corruptFileIsRemoved() throws Exception {
+        byte[] data = random(600000, 41);
+        Path path = file("corrupt.bin", data);
+        byte[] kept = data.clone();
+        kept[1234] ^= 0x55; // what was kept from before went bad
+        interrupted(path, kept, 400000);
+        resume(path);
+        for (int wait = 0; Files.exists(received(path)); wait++) {
+            assertTrue(wait < 500, "file failing its CRC32C was kept");
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(Paths.get(received(path) + VSFtpWriter.CHECKPOINT_SUFFIX)));
+    }
+}
@@ -0,0 +1,44 @@
+package ik2215.gudp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VSTreeTest extends VSTestBase {
+
+    private Path tree(String dir, String root, String content) throws Exception {
+        Path path = Files.createDirectories(sendDir.resolve(dir).resolve(root));
+        Files.write(path.resolve("f.txt"), content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    void rootsAreSynced() throws Exception {
+        Path one = tree("a", "one", "first");
+        Path two = tree("b", "two", "second");
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        run(sender(open(), receiverSocket, one, two));
+        awaitFile(recvDir.resolve("one/f.txt"), "first".getBytes(StandardCharsets.UTF_8));
+        awaitFile(recvDir.resolve("two/f.txt"), "second".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void sameRootNameIsRefused() throws Exception {
+        Path first = tree("a", "data", "first");
+        Path second = tree("b", "data", "second");
+        GUDPSocket receiverSocket = open();
+        receiver(receiverSocket);
+        run(sender(open(), receiverSocket, first, second));
+        // refused before any manifest is sent
+        Thread.sleep(200);
+        synchronized (receiverSocket.receiverList) {
+            assertTrue(receiverSocket.receiverList.isEmpty());
+        }
+        assertFalse(Files.exists(recvDir.resolve("data")));
+    }
+}